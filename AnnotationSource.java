@@ -0,0 +1,30 @@
+package nhs.genetics.cardiff;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * An interface for resources providing Variant node properties, e.g. population frequencies or dbSNP ids.
+ * Variants are requested in coordinate order within each contig so sources can merge-join against sorted resources.
+ *
+ * @author  agent
+ * @version 1.0
+ * @since   2026-10-19
+ */
+public interface AnnotationSource extends Closeable {
+
+    String getName();
+
+    /**
+     * @return property keys this source can set
+     */
+    Set<String> getPropertyKeys();
+
+    /**
+     * @return properties for the variant in minimal representation, empty if absent from the resource
+     */
+    HashMap<String, Object> getAnnotations(String contig, int pos, String ref, String alt) throws IOException;
+
+}
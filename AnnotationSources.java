@@ -0,0 +1,139 @@
+package nhs.genetics.cardiff;
+
+import htsjdk.variant.variantcontext.VariantContext;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A class for reading annotation sources in parallel, each on its own thread. Sources are configured with one
+ * tab-separated line each: name, resource VCF, comma-separated fields (see {@link VcfAnnotationSource}).
+ *
+ * @author  agent
+ * @version 1.0
+ * @since   2026-10-19
+ */
+public class AnnotationSources implements Closeable {
+    private static final Logger log = Logger.getLogger(AnnotationSources.class.getName());
+
+    private final ArrayList<AnnotationSource> annotationSources;
+    private final ArrayList<ExecutorService> executorServices = new ArrayList<>();
+
+    public AnnotationSources(ArrayList<AnnotationSource> annotationSources){
+        this.annotationSources = annotationSources;
+
+        //single thread per source keeps requests in file order, daemon so an unclosed source cannot hold the JVM open
+        for (final AnnotationSource annotationSource : annotationSources){
+            executorServices.add(Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "annotation-source-" + annotationSource.getName());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }));
+        }
+    }
+
+    public static AnnotationSources readConfig(File configFile) throws IOException {
+        ArrayList<AnnotationSource> annotationSources = new ArrayList<>();
+
+        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(configFile))){
+            String line;
+
+            while ((line = bufferedReader.readLine()) != null){
+
+                //skip comments and blank lines
+                if (line.equals("") || line.startsWith("#")){
+                    continue;
+                }
+
+                String[] columns = line.split("\t");
+                if (columns.length != 3){
+                    throw new InvalidPropertiesFormatException("Malformed annotation source: " + line);
+                }
+
+                LinkedHashMap<String, String> fields = new LinkedHashMap<>();
+                for (String field : columns[2].split(",")){
+                    String[] keyValue = field.split("=");
+                    if (keyValue.length != 2){
+                        throw new InvalidPropertiesFormatException("Malformed annotation source field: " + field);
+                    }
+                    fields.put(keyValue[0], keyValue[1]);
+                }
+
+                log.log(Level.INFO, "Adding annotation source " + columns[0] + " from " + columns[1]);
+                annotationSources.add(new VcfAnnotationSource(columns[0], new File(columns[1]), fields));
+            }
+        }
+
+        return new AnnotationSources(annotationSources);
+    }
+
+    /**
+     * Queues look ups for a variant in every source. Variants must be submitted in coordinate order.
+     */
+    public ArrayList<Future<HashMap<String, Object>>> submit(VariantContext variantContext){
+        ArrayList<Future<HashMap<String, Object>>> futures = new ArrayList<>();
+
+        final String contig = variantContext.getContig();
+        final int pos = variantContext.getStart();
+        final String ref = variantContext.getAlleles().get(0).getBaseString();
+        final String alt = variantContext.getAlleles().get(1).getBaseString();
+
+        for (int n = 0; n < annotationSources.size(); ++n){
+            final AnnotationSource annotationSource = annotationSources.get(n);
+
+            futures.add(executorServices.get(n).submit(new Callable<HashMap<String, Object>>() {
+                @Override
+                public HashMap<String, Object> call() throws IOException {
+                    return annotationSource.getAnnotations(contig, pos, ref, alt);
+                }
+            }));
+        }
+
+        return futures;
+    }
+
+    //combine look ups from all sources
+    public static HashMap<String, Object> get(ArrayList<Future<HashMap<String, Object>>> futures) throws IOException {
+        HashMap<String, Object> properties = new HashMap<>();
+
+        try {
+            for (Future<HashMap<String, Object>> future : futures){
+                properties.putAll(future.get());
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted reading annotation sources");
+        } catch (ExecutionException e){
+            throw new IOException("Could not read annotation source: " + e.getCause().getMessage(), e.getCause());
+        }
+
+        return properties;
+    }
+
+    public HashSet<String> getPropertyKeys(){
+        HashSet<String> keys = new HashSet<>();
+
+        for (AnnotationSource annotationSource : annotationSources){
+            keys.addAll(annotationSource.getPropertyKeys());
+        }
+
+        return keys;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (ExecutorService executorService : executorServices){
+            executorService.shutdownNow();
+        }
+        for (AnnotationSource annotationSource : annotationSources){
+            annotationSource.close();
+        }
+    }
+
+}
@@ -0,0 +1,364 @@
+package nhs.genetics.cardiff;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.io.fs.FileUtils;
+
+import java.io.*;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A class for cohort carrier queries. Each Variant stores the run ordinals of the analyses carrying it in a carriers
+ * property, written in the same transaction as the genotype: sorted ordinals while few analyses carry the variant, a
+ * bitmap over ordinals once that is smaller. Beside the graph each analysis has a file of the sorted node ids of the
+ * variants it carries, written once its genotypes are committed and memory-mapped for intersections and unions.
+ *
+ * @author  agent
+ * @version 1.0
+ * @since   2026-10-19
+ */
+public class CarrierIndex {
+    private static final Logger log = Logger.getLogger(CarrierIndex.class.getName());
+
+    public static final String carriersKey = "carriers";
+
+    private static final String runExtension = ".variants";
+    private static final String completeMarker = "complete"; //every genotype is reflected in carriers
+
+    private final GraphDatabaseService graphDb;
+    private final File directory;
+    private Integer nextRunOrdinal; //read from the graph on first use
+    private ConcurrentHashMap<Integer, LongBuffer> mappedRuns = new ConcurrentHashMap<>();
+
+    public CarrierIndex(GraphDatabaseService graphDb, File directory) throws IOException {
+        this.graphDb = graphDb;
+        this.directory = directory;
+
+        if (!directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("Could not create " + directory);
+        }
+    }
+
+    /**
+     * Adds a RunInfo node with the next run ordinal in its own transaction, so an ordinal is only used once its
+     * analysis is committed. Must not be called inside a transaction.
+     *
+     * @param properties RunInfo properties, the assigned ordinal is added
+     */
+    public synchronized Node addRunInfoNode(HashMap<String, Object> properties){
+        properties.put("ordinal", getNextRunOrdinal());
+
+        Node runInfoNode = Neo4j.addNode(graphDb, VariantDatabase.getRunInfoLabel(), properties);
+
+        ++nextRunOrdinal;
+        return runInfoNode;
+    }
+
+    //analyses imported before carriers were stored, must not be called inside a transaction
+    public synchronized void assignRunOrdinals(){
+        ArrayList<Long> runInfoNodeIds = new ArrayList<>();
+
+        try (Transaction tx = graphDb.beginTx()) {
+            try (ResourceIterator<Node> nodes = graphDb.findNodes(VariantDatabase.getRunInfoLabel())) {
+                while (nodes.hasNext()) {
+                    Node runInfoNode = nodes.next();
+                    if (!runInfoNode.hasProperty("ordinal")) runInfoNodeIds.add(runInfoNode.getId());
+                }
+            }
+            tx.success();
+        }
+
+        for (Long runInfoNodeId : runInfoNodeIds){
+            try (Transaction tx = graphDb.beginTx()) {
+                graphDb.getNodeById(runInfoNodeId).setProperty("ordinal", getNextRunOrdinal());
+                tx.success();
+            }
+            ++nextRunOrdinal;
+        }
+    }
+
+    private int getNextRunOrdinal(){
+
+        if (nextRunOrdinal == null){
+            int max = -1;
+
+            try (Transaction tx = graphDb.beginTx()) {
+                try (ResourceIterator<Node> nodes = graphDb.findNodes(VariantDatabase.getRunInfoLabel())) {
+                    while (nodes.hasNext()) {
+                        max = Math.max(max, (Integer) nodes.next().getProperty("ordinal", -1));
+                    }
+                }
+                tx.success();
+            }
+
+            nextRunOrdinal = max + 1;
+        }
+
+        return nextRunOrdinal;
+    }
+
+    /**
+     * @return carriers with the run ordinal added, the stored value is not modified
+     */
+    public static Object addCarrier(Object carriers, int runOrdinal){
+
+        if (carriers == null){
+            return new int[]{runOrdinal};
+        }
+
+        if (carriers instanceof long[]){
+            long[] words = (long[]) carriers;
+            words = Arrays.copyOf(words, Math.max(words.length, (runOrdinal >>> 6) + 1));
+            words[runOrdinal >>> 6] |= 1L << runOrdinal;
+            return words;
+        }
+
+        int[] runOrdinals = (int[]) carriers;
+        int index = Arrays.binarySearch(runOrdinals, runOrdinal);
+
+        if (index >= 0){
+            return runOrdinals;
+        }
+
+        index = -index - 1;
+        int[] updated = new int[runOrdinals.length + 1];
+        System.arraycopy(runOrdinals, 0, updated, 0, index);
+        updated[index] = runOrdinal;
+        System.arraycopy(runOrdinals, index, updated, index + 1, runOrdinals.length - index);
+
+        //bitmap once it is smaller than the ordinals
+        if ((long) updated.length * 32 > ((updated[updated.length - 1] >>> 6) + 1) * 64L){
+            long[] words = new long[(updated[updated.length - 1] >>> 6) + 1];
+            for (int ordinal : updated){
+                words[ordinal >>> 6] |= 1L << ordinal;
+            }
+            return words;
+        }
+
+        return updated;
+    }
+
+    public static boolean isCarrier(Object carriers, int runOrdinal){
+
+        if (carriers instanceof long[]){
+            long[] words = (long[]) carriers;
+            return (runOrdinal >>> 6) < words.length && (words[runOrdinal >>> 6] & (1L << runOrdinal)) != 0;
+        }
+
+        return carriers != null && Arrays.binarySearch((int[]) carriers, runOrdinal) >= 0;
+    }
+
+    /**
+     * @return sorted run ordinals
+     */
+    public static int[] getRunOrdinals(Object carriers){
+
+        if (carriers instanceof long[]){
+            return BitSet.valueOf((long[]) carriers).stream().toArray();
+        }
+
+        return carriers == null ? new int[0] : ((int[]) carriers).clone();
+    }
+
+    //store the variants carried by an analysis once its genotypes are committed
+    public void writeCarriedVariants(long runInfoNodeId) throws IOException {
+        long[] variantNodeIds = new long[1024];
+        int variants = 0, runOrdinal;
+
+        try (Transaction tx = graphDb.beginTx()) {
+            Node runInfoNode = graphDb.getNodeById(runInfoNodeId);
+            runOrdinal = (Integer) runInfoNode.getProperty("ordinal");
+
+            for (Relationship relationship : runInfoNode.getRelationships(Direction.OUTGOING, VariantDatabase.getHasHetVariantRelationship(), VariantDatabase.getHasHomVariantRelationship())){
+                if (variants == variantNodeIds.length) variantNodeIds = Arrays.copyOf(variantNodeIds, variants * 2);
+                variantNodeIds[variants++] = relationship.getEndNode().getId();
+            }
+
+            tx.success();
+        }
+
+        Arrays.sort(variantNodeIds, 0, variants);
+
+        File file = getRunFile(runOrdinal);
+        File tempFile = new File(directory, file.getName() + ".tmp");
+
+        try (DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))){
+            for (int n = 0; n < variants; ++n){
+                if (n == 0 || variantNodeIds[n] != variantNodeIds[n - 1]) dataOutputStream.writeLong(variantNodeIds[n]);
+            }
+        }
+
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        mappedRuns.remove(runOrdinal);
+    }
+
+    //new database or carriers rebuilt from genotypes
+    public void setComplete() throws IOException {
+        File marker = new File(directory, completeMarker);
+        if (!marker.isFile() && !marker.createNewFile()){
+            throw new IOException("Could not create " + marker);
+        }
+
+        //per-run bitmaps from earlier versions are superseded
+        FileUtils.deleteRecursively(new File(directory.getParentFile(), "genotypeBitmaps"));
+    }
+
+    /**
+     * @return run ordinals of analyses carrying the variant
+     */
+    public int[] getCarriers(long variantNodeId) throws InvalidPropertiesFormatException {
+        checkComplete();
+
+        try (Transaction tx = graphDb.beginTx()) {
+            int[] runOrdinals = getRunOrdinals(graphDb.getNodeById(variantNodeId).getProperty(carriersKey, null));
+            tx.success();
+            return runOrdinals;
+        }
+    }
+
+    public boolean isCarrier(long variantNodeId, int runOrdinal) throws InvalidPropertiesFormatException {
+        checkComplete();
+
+        try (Transaction tx = graphDb.beginTx()) {
+            boolean carrier = isCarrier(graphDb.getNodeById(variantNodeId).getProperty(carriersKey, null), runOrdinal);
+            tx.success();
+            return carrier;
+        }
+    }
+
+    /**
+     * @return sorted variant node ids carried by an analysis
+     */
+    public long[] getCarriedVariants(int runOrdinal) throws IOException {
+        LongBuffer run = getRun(runOrdinal);
+        long[] variantNodeIds = new long[run.remaining()];
+
+        run.get(variantNodeIds);
+
+        return variantNodeIds;
+    }
+
+    /**
+     * @return sorted variant node ids carried by all of the analyses
+     */
+    public long[] getIntersection(int... runOrdinals) throws IOException {
+        ArrayList<LongBuffer> runs = new ArrayList<>();
+
+        if (runOrdinals.length == 0){
+            return new long[0];
+        }
+
+        for (int runOrdinal : runOrdinals){
+            runs.add(getRun(runOrdinal));
+        }
+
+        //probe the larger runs with each variant of the smallest
+        Collections.sort(runs, new Comparator<LongBuffer>() {
+            @Override
+            public int compare(LongBuffer run1, LongBuffer run2) {
+                return Integer.compare(run1.remaining(), run2.remaining());
+            }
+        });
+
+        long[] variantNodeIds = new long[runs.get(0).remaining()];
+        int variants = 0;
+
+        for (int n = 0; n < variantNodeIds.length; ++n){
+            long variantNodeId = runs.get(0).get(n);
+            boolean carriedByAll = true;
+
+            for (int r = 1; r < runs.size() && carriedByAll; ++r){
+                carriedByAll = contains(runs.get(r), variantNodeId);
+            }
+
+            if (carriedByAll) variantNodeIds[variants++] = variantNodeId;
+        }
+
+        return Arrays.copyOf(variantNodeIds, variants);
+    }
+
+    /**
+     * @return sorted variant node ids carried by any of the analyses
+     */
+    public long[] getUnion(int... runOrdinals) throws IOException {
+        long[] variantNodeIds = new long[0];
+
+        for (int runOrdinal : runOrdinals){
+            LongBuffer run = getRun(runOrdinal);
+            long[] merged = new long[variantNodeIds.length + run.remaining()];
+            int i = 0, j = 0, n = 0;
+
+            //merge sorted ids, keeping one of each
+            while (i < variantNodeIds.length || j < run.remaining()){
+                long next = j == run.remaining() || (i < variantNodeIds.length && variantNodeIds[i] <= run.get(j)) ? variantNodeIds[i++] : run.get(j++);
+                if (n == 0 || merged[n - 1] != next) merged[n++] = next;
+            }
+
+            variantNodeIds = Arrays.copyOf(merged, n);
+        }
+
+        return variantNodeIds;
+    }
+
+    public void close(){
+        mappedRuns.clear();
+    }
+
+    private static boolean contains(LongBuffer run, long variantNodeId){
+        int low = 0, high = run.remaining() - 1;
+
+        while (low <= high){
+            int mid = (low + high) >>> 1;
+            long value = run.get(mid);
+
+            if (value < variantNodeId){
+                low = mid + 1;
+            } else if (value > variantNodeId){
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private LongBuffer getRun(int runOrdinal) throws IOException {
+        checkComplete();
+
+        LongBuffer run = mappedRuns.get(runOrdinal);
+
+        if (run == null){
+
+            try (FileChannel fileChannel = FileChannel.open(getRunFile(runOrdinal).toPath(), StandardOpenOption.READ)){
+                run = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size()).asLongBuffer();
+            } catch (NoSuchFileException e){
+                throw new InvalidPropertiesFormatException("No carried variants for run ordinal " + runOrdinal + ", the analysis is still importing or run with -c to rebuild them");
+            }
+
+            mappedRuns.put(runOrdinal, run);
+        }
+
+        return run.duplicate();
+    }
+
+    private File getRunFile(int runOrdinal){
+        return new File(directory, runOrdinal + runExtension);
+    }
+
+    //genotypes imported before carriers were stored would be missed
+    private void checkComplete() throws InvalidPropertiesFormatException {
+        if (!new File(directory, completeMarker).isFile()){
+            throw new InvalidPropertiesFormatException("Carriers are incomplete, run with -c to rebuild them from genotypes");
+        }
+    }
+
+}
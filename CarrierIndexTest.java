@@ -0,0 +1,65 @@
+package nhs.genetics.cardiff;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for encoding carriers as ordinals or a bitmap
+ *
+ * @author  agent
+ * @version 1.0
+ * @since   2026-10-19
+ */
+public class CarrierIndexTest {
+
+    @Test
+    public void keepsSortedOrdinalsWhileSparse() {
+        Object carriers = null;
+
+        for (int runOrdinal : new int[]{500, 3, 200, 3}){
+            carriers = CarrierIndex.addCarrier(carriers, runOrdinal);
+        }
+
+        assertTrue(carriers instanceof int[]);
+        assertArrayEquals(new int[]{3, 200, 500}, (int[]) carriers);
+        assertTrue(CarrierIndex.isCarrier(carriers, 200));
+        assertFalse(CarrierIndex.isCarrier(carriers, 201));
+        assertFalse(CarrierIndex.isCarrier(null, 3));
+    }
+
+    @Test
+    public void switchesToBitmapWhenSmaller() {
+        Object carriers = null;
+        int[] expected = new int[64];
+
+        for (int n = 0; n < 64; ++n){
+            expected[n] = n * 2;
+            carriers = CarrierIndex.addCarrier(carriers, n * 2);
+        }
+
+        assertTrue(carriers instanceof long[]);
+        assertArrayEquals(expected, CarrierIndex.getRunOrdinals(carriers));
+        assertTrue(CarrierIndex.isCarrier(carriers, 126));
+        assertFalse(CarrierIndex.isCarrier(carriers, 127));
+        assertFalse(CarrierIndex.isCarrier(carriers, 1000));
+
+        //bitmap grows beyond its last word
+        carriers = CarrierIndex.addCarrier(carriers, 1000);
+        assertTrue(CarrierIndex.isCarrier(carriers, 1000));
+        assertTrue(CarrierIndex.isCarrier(carriers, 0));
+    }
+
+    @Test
+    public void returnsCopyOfOrdinals() {
+        int[] carriers = (int[]) CarrierIndex.addCarrier(null, 7);
+
+        CarrierIndex.getRunOrdinals(carriers)[0] = 8;
+
+        assertArrayEquals(new int[]{7}, carriers);
+        assertArrayEquals(new int[0], CarrierIndex.getRunOrdinals(null));
+    }
+
+}
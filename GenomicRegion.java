@@ -0,0 +1,64 @@
+package nhs.genetics.cardiff;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * A class for BED-style genomic regions (0-based start, 1-based end)
+ *
+ * @author  agent
+ * @version 1.0
+ * @since   2026-10-19
+ */
+public class GenomicRegion {
+
+    private String contig;
+    private int start, end;
+
+    public GenomicRegion(String contig, int start, int end){
+        this.contig = contig;
+        this.start = start;
+        this.end = end;
+    }
+
+    public static ArrayList<GenomicRegion> readBedFile(File bedFile) throws IOException {
+        ArrayList<GenomicRegion> genomicRegions = new ArrayList<>();
+
+        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(bedFile))){
+            String line;
+
+            while ((line = bufferedReader.readLine()) != null){
+
+                //skip headers and blank lines
+                if (line.equals("") || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")){
+                    continue;
+                }
+
+                String[] fields = line.split("\t");
+                genomicRegions.add(new GenomicRegion(fields[0], Integer.parseInt(fields[1]), Integer.parseInt(fields[2])));
+            }
+        }
+
+        return genomicRegions;
+    }
+
+    public String getContig() {
+        return contig;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    @Override
+    public String toString() {
+        return contig + ":" + (start + 1) + "-" + end;
+    }
+}
@@ -0,0 +1,307 @@
+package nhs.genetics.cardiff;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFFileReader;
+import org.neo4j.io.fs.FileUtils;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A class for timing a full import into a temporary database. Runs the genotype import, and the annotation import
+ * when an annotated VCF is supplied, then records throughput, peak heap, GC time and store size as JSON. A synthetic
+ * genotype VCF with a fixed seed is generated when none is supplied. Throughput is compared against a baseline.
+ *
+ * @author  agent
+ * @version 1.0
+ * @since   2026-10-19
+ */
+public class ImportBenchmark {
+    private static final Logger log = Logger.getLogger(ImportBenchmark.class.getName());
+
+    //synthetic genotype VCF
+    private static final long syntheticSeed = 42;
+    private static final int syntheticRecords = 100000;
+    private static final int syntheticSamples = 8;
+    private static final String[] syntheticContigs = {"1", "2", "3", "4", "5", "6", "7", "8", "9", "10", "11", "12",
+            "13", "14", "15", "16", "17", "18", "19", "20", "21", "22", "X", "Y"};
+    private static final String[] bases = {"A", "C", "G", "T"};
+
+    private final File genotypeVcf, resultsFile;
+    private File annotatedVcf, baselineFile, annotationSourceConfig;
+    private int novelVariantMemoryBudget = Integer.MAX_VALUE;
+    private boolean compactStorage = false;
+    private double maxRegression = 10; //percent
+    private LinkedHashMap<String, Object> results = new LinkedHashMap<>();
+
+    public ImportBenchmark(File genotypeVcf, File resultsFile){
+        this.genotypeVcf = genotypeVcf;
+        this.resultsFile = resultsFile;
+    }
+
+    public void setAnnotatedVcf(File annotatedVcf) {
+        this.annotatedVcf = annotatedVcf;
+    }
+
+    public void setBaseline(File baselineFile, double maxRegression) {
+        this.baselineFile = baselineFile;
+        this.maxRegression = maxRegression;
+    }
+
+    public void setAnnotationSourceConfig(File annotationSourceConfig) {
+        this.annotationSourceConfig = annotationSourceConfig;
+    }
+
+    public void setNovelVariantMemoryBudget(int novelVariantMemoryBudget) {
+        this.novelVariantMemoryBudget = novelVariantMemoryBudget;
+    }
+
+    public void setCompactStorage(boolean compactStorage) {
+        this.compactStorage = compactStorage;
+    }
+
+    /**
+     * @return false if throughput regressed beyond the threshold
+     */
+    public boolean run() throws IOException {
+        File workDirectory = Files.createTempDirectory(resultsFile.getAbsoluteFile().getParentFile().toPath(), "benchmark").toFile();
+
+        try {
+            File vcfFile = genotypeVcf != null ? genotypeVcf : writeSyntheticVcf(new File(workDirectory, "synthetic.vcf"));
+            File dbPath = new File(workDirectory, "graph.db");
+
+            results.put("genotypeVcf", genotypeVcf != null ? genotypeVcf.getPath() : "synthetic:" + syntheticSeed + ":" + syntheticRecords + ":" + syntheticSamples);
+            results.put("annotatedVcf", annotatedVcf != null ? annotatedVcf.getPath() : null);
+            results.put("started", new Date().toString());
+            results.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+            results.put("maxHeapBytes", Runtime.getRuntime().maxMemory());
+            results.put("compactStorage", compactStorage ? "true" : "false");
+
+            VCFFileReader genotypeReader = new VCFFileReader(vcfFile, false);
+            VariantDatabase variantDatabase = new VariantDatabase(genotypeReader, dbPath);
+            variantDatabase.setNovelVariantMemoryBudget(novelVariantMemoryBudget);
+            variantDatabase.setAnnotationSourceConfig(annotationSourceConfig);
+            variantDatabase.setCompactStorage(compactStorage);
+            variantDatabase.startDatabase();
+            variantDatabase.createIndexes();
+
+            //genotype import
+            log.log(Level.INFO, "Benchmarking genotype import ...");
+            Phase genotypePhase = new Phase("genotype", countRecords(vcfFile));
+            variantDatabase.addSampleAndRunInfoNodes();
+            variantDatabase.importVariants();
+            variantDatabase.writeNewVariantsToVCF(new File(workDirectory, "imported.vcf"));
+            genotypePhase.stop();
+            genotypeReader.close();
+
+            //annotation import
+            if (annotatedVcf != null){
+                log.log(Level.INFO, "Benchmarking annotation import ...");
+
+                VCFFileReader annotationReader = new VCFFileReader(annotatedVcf, false);
+                Phase annotationPhase = new Phase("annotation", countRecords(annotatedVcf));
+                variantDatabase.newSession(annotationReader).importAnnotations();
+                annotationPhase.stop();
+                annotationReader.close();
+            }
+
+            variantDatabase.shutdownDatabase();
+            results.put("storeBytes", getSize(dbPath));
+
+        } finally {
+            FileUtils.deleteRecursively(workDirectory);
+        }
+
+        writeResults();
+
+        return baselineFile == null || compareWithBaseline();
+    }
+
+    //fixed seed so repeated runs import identical data
+    private static File writeSyntheticVcf(File vcfFile) throws IOException {
+        log.log(Level.INFO, "Writing synthetic VCF with " + syntheticRecords + " records and " + syntheticSamples + " samples ...");
+
+        Random random = new Random(syntheticSeed);
+        int recordsPerContig = syntheticRecords / syntheticContigs.length + 1;
+
+        try (PrintWriter printWriter = new PrintWriter(new BufferedWriter(new FileWriter(vcfFile)))){
+
+            printWriter.println("##fileformat=VCFv4.1");
+            printWriter.println("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">");
+            printWriter.println("##FORMAT=<ID=GQ,Number=1,Type=Integer,Description=\"Genotype Quality\">");
+            for (String contig : syntheticContigs){
+                printWriter.println("##contig=<ID=" + contig + ",length=250000000>");
+            }
+            for (int n = 0; n < syntheticSamples; ++n){
+                printWriter.println("##SAMPLE=<ID=S" + n + ",Tissue=Blood,WorklistId=BENCH,SeqId=RUN1,Assay=Benchmark,PipelineName=Benchmark,PipelineVersion=1,RemoteBamFilePath=S" + n + ".bam,RemoteVcfFilePath=S" + n + ".vcf>");
+            }
+
+            printWriter.print("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT");
+            for (int n = 0; n < syntheticSamples; ++n){
+                printWriter.print("\tS" + n);
+            }
+            printWriter.println();
+
+            for (int n = 0; n < syntheticRecords; ++n){
+                String contig = syntheticContigs[n / recordsPerContig];
+                int pos = 10000 + (n % recordsPerContig) * 100;
+                String ref = bases[random.nextInt(bases.length)];
+                String alt = bases[(Arrays.asList(bases).indexOf(ref) + 1 + random.nextInt(bases.length - 1)) % bases.length];
+
+                //one in ten sites is an indel
+                if (random.nextInt(10) == 0){
+                    alt = random.nextBoolean() ? ref + alt : ref;
+                    if (alt.equals(ref)) ref = ref + bases[random.nextInt(bases.length)];
+                }
+
+                printWriter.print(contig + "\t" + pos + "\t.\t" + ref + "\t" + alt + "\t100\tPASS\t.\tGT:GQ");
+
+                for (int s = 0; s < syntheticSamples; ++s){
+                    int genotype = random.nextInt(10);
+                    printWriter.print("\t" + (genotype < 6 ? "0/0" : genotype < 9 ? "0/1" : "1/1") + ":" + (20 + random.nextInt(80)));
+                }
+                printWriter.println();
+            }
+
+        }
+
+        return vcfFile;
+    }
+
+    private static long countRecords(File vcfFile){
+        long records = 0;
+
+        try (VCFFileReader vcfFileReader = new VCFFileReader(vcfFile, false);
+             CloseableIterator<VariantContext> iterator = vcfFileReader.iterator()){
+            while (iterator.hasNext()){
+                iterator.next();
+                ++records;
+            }
+        }
+
+        return records;
+    }
+
+    private static long getSize(File file){
+        if (file.isFile()){
+            return file.length();
+        }
+
+        long size = 0;
+        File[] files = file.listFiles();
+
+        if (files != null){
+            for (File child : files){
+                size += getSize(child);
+            }
+        }
+
+        return size;
+    }
+
+    private void writeResults() throws IOException {
+        log.log(Level.INFO, "Writing benchmark results to " + resultsFile);
+
+        try (PrintWriter printWriter = new PrintWriter(resultsFile)){
+            printWriter.println("{");
+
+            Iterator<Map.Entry<String, Object>> iterator = results.entrySet().iterator();
+            while (iterator.hasNext()){
+                Map.Entry<String, Object> entry = iterator.next();
+                Object value = entry.getValue();
+
+                printWriter.print("  \"" + entry.getKey() + "\": ");
+                if (value == null || value instanceof Number){
+                    printWriter.print(value);
+                } else {
+                    printWriter.print("\"" + value.toString().replace("\\", "\\\\").replace("\"", "\\\"") + "\"");
+                }
+                printWriter.println(iterator.hasNext() ? "," : "");
+            }
+
+            printWriter.println("}");
+        }
+    }
+
+    private boolean compareWithBaseline() throws IOException {
+        String baseline = new String(Files.readAllBytes(baselineFile.toPath()), "UTF-8");
+        boolean passed = true;
+
+        for (String key : new String[]{"genotypeRecordsPerSecond", "annotationRecordsPerSecond"}){
+            Matcher matcher = Pattern.compile("\"" + key + "\"\\s*:\\s*([0-9.Ee+-]+)").matcher(baseline);
+
+            if (!matcher.find() || !results.containsKey(key)){
+                continue;
+            }
+
+            double expected = Double.parseDouble(matcher.group(1));
+            double observed = (Double) results.get(key);
+            double change = (observed - expected) / expected * 100;
+
+            if (change < -maxRegression){
+                log.log(Level.SEVERE, key + " regressed by " + String.format("%.1f", -change) + "% (" + String.format("%.1f", observed) + " vs baseline " + String.format("%.1f", expected) + ")");
+                passed = false;
+            } else {
+                log.log(Level.INFO, key + " changed by " + String.format("%+.1f", change) + "% (" + String.format("%.1f", observed) + " vs baseline " + String.format("%.1f", expected) + ")");
+            }
+        }
+
+        return passed;
+    }
+
+    //wall time, peak heap and GC time for one import step
+    private class Phase {
+        private final String name;
+        private final long records, startNanos, startGcMillis;
+
+        private Phase(String name, long records){
+            this.name = name;
+            this.records = records;
+
+            for (MemoryPoolMXBean memoryPoolMXBean : ManagementFactory.getMemoryPoolMXBeans()){
+                if (memoryPoolMXBean.getType() == MemoryType.HEAP) memoryPoolMXBean.resetPeakUsage();
+            }
+
+            this.startGcMillis = getGcMillis();
+            this.startNanos = System.nanoTime();
+        }
+
+        private void stop(){
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            long peakHeapBytes = 0;
+
+            for (MemoryPoolMXBean memoryPoolMXBean : ManagementFactory.getMemoryPoolMXBeans()){
+                if (memoryPoolMXBean.getType() == MemoryType.HEAP) peakHeapBytes += memoryPoolMXBean.getPeakUsage().getUsed();
+            }
+
+            results.put(name + "Records", records);
+            results.put(name + "Seconds", seconds);
+            results.put(name + "RecordsPerSecond", records / seconds);
+            results.put(name + "PeakHeapBytes", peakHeapBytes);
+            results.put(name + "GcMillis", getGcMillis() - startGcMillis);
+
+            log.log(Level.INFO, name + " import: " + records + " records in " + String.format("%.1f", seconds) + "s");
+        }
+
+        private long getGcMillis(){
+            long gcMillis = 0;
+
+            for (GarbageCollectorMXBean garbageCollectorMXBean : ManagementFactory.getGarbageCollectorMXBeans()){
+                if (garbageCollectorMXBean.getCollectionTime() > 0) gcMillis += garbageCollectorMXBean.getCollectionTime();
+            }
+
+            return gcMillis;
+        }
+    }
+
+}
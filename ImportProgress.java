@@ -0,0 +1,179 @@
+package nhs.genetics.cardiff;
+
+import htsjdk.tribble.index.Block;
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.IndexFactory;
+import htsjdk.tribble.index.tabix.TabixIndex;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A class for reporting import progress at a fixed interval. The fraction complete is estimated from the file offset
+ * the VCF index gives for the current position; records/sec and projected completion are logged and optionally
+ * written to a status file.
+ *
+ * @author  agent
+ * @version 1.0
+ * @since   2026-10-19
+ */
+public class ImportProgress {
+    private static final Logger log = Logger.getLogger(ImportProgress.class.getName());
+
+    private final File vcfFile, statusFile;
+    private final long intervalSeconds;
+    private Index index;
+    private ScheduledExecutorService scheduledExecutorService;
+
+    //written by the importer, read when reporting
+    private volatile String contig;
+    private volatile int pos;
+    private volatile long records = 0;
+
+    private long startNanos, lastNanos, lastRecords;
+    private double fraction = 0;
+    private boolean finished = false;
+
+    public ImportProgress(File vcfFile, File vcfIndex, long intervalSeconds, File statusFile){
+        this.vcfFile = vcfFile;
+        this.intervalSeconds = intervalSeconds;
+        this.statusFile = statusFile;
+
+        //unreadable index, progress is reported without a percentage
+        try {
+            this.index = IndexFactory.loadIndex(vcfIndex.getPath());
+        } catch (RuntimeException e){
+            log.log(Level.WARNING, "Could not read " + vcfIndex + " to estimate progress: " + e.getMessage());
+        }
+    }
+
+    public void start(){
+        startNanos = System.nanoTime();
+        lastNanos = startNanos;
+        finished = false;
+
+        scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "import-progress");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report("RUNNING");
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    //called by the importer thread for each record read
+    public void update(String contig, int pos){
+        this.contig = contig;
+        this.pos = pos;
+        ++records;
+    }
+
+    public void finish(boolean completed){
+        if (scheduledExecutorService != null) scheduledExecutorService.shutdownNow();
+        if (completed) fraction = 1;
+        report(completed ? "COMPLETED" : "STOPPED");
+    }
+
+    private synchronized void report(String state){
+
+        //scheduled report running after the final report
+        if (finished){
+            return;
+        }
+        finished = !state.equals("RUNNING");
+
+        long nanos = System.nanoTime();
+        long currentRecords = records;
+        String currentContig = contig;
+        int currentPos = pos;
+
+        double elapsedSeconds = (nanos - startNanos) / 1e9;
+        double recordsPerSecond = elapsedSeconds > 0 ? currentRecords / elapsedSeconds : 0;
+        double recentRecordsPerSecond = nanos > lastNanos ? (currentRecords - lastRecords) / ((nanos - lastNanos) / 1e9) : 0;
+
+        lastNanos = nanos;
+        lastRecords = currentRecords;
+
+        if (currentContig != null && fraction < 1){
+            fraction = Math.max(fraction, getFraction(currentContig, currentPos));
+        }
+
+        //remaining time at the average rate so far
+        Date eta = fraction > 0 && fraction < 1 ? new Date(System.currentTimeMillis() + (long) (elapsedSeconds / fraction * (1 - fraction) * 1000)) : null;
+
+        log.log(Level.INFO, "Progress: " + (currentContig == null ? "-" : currentContig + ":" + currentPos) +
+                (index == null ? "" : " " + String.format("%.1f", fraction * 100) + "%") +
+                " " + currentRecords + " records " + String.format("%.0f", recordsPerSecond) + " records/sec" +
+                " (recent " + String.format("%.0f", recentRecordsPerSecond) + ")" +
+                (eta == null ? "" : " ETA " + eta));
+
+        if (statusFile != null){
+            Properties status = new Properties();
+
+            status.setProperty("state", state);
+            status.setProperty("updated", new Date().toString());
+            status.setProperty("vcf", vcfFile.getPath());
+            status.setProperty("records", Long.toString(currentRecords));
+            status.setProperty("recordsPerSecond", String.format("%.1f", recordsPerSecond));
+            status.setProperty("recentRecordsPerSecond", String.format("%.1f", recentRecordsPerSecond));
+            if (currentContig != null) status.setProperty("contig", currentContig);
+            if (currentContig != null) status.setProperty("pos", Integer.toString(currentPos));
+            if (index != null) status.setProperty("percentComplete", String.format("%.1f", fraction * 100));
+            if (eta != null) status.setProperty("eta", eta.toString());
+
+            writeStatus(status);
+        }
+    }
+
+    //file offset of the current position relative to the file size
+    private double getFraction(String contig, int pos){
+        if (index == null || !index.containsChromosome(contig)){
+            return 0;
+        }
+
+        List<Block> blocks = index.getBlocks(contig, pos, pos);
+        if (blocks.size() == 0){
+            return 0;
+        }
+
+        //tabix offsets are virtual, the compressed offset is the upper 48 bits
+        long offset = blocks.get(0).getStartPosition();
+        if (index instanceof TabixIndex) offset = offset >>> 16;
+
+        return Math.min(1, (double) offset / vcfFile.length());
+    }
+
+    private void writeStatus(Properties status){
+        File tempFile = new File(statusFile.getPath() + ".tmp");
+
+        try {
+            try (FileOutputStream fileOutputStream = new FileOutputStream(tempFile)){
+                status.store(fileOutputStream, "import progress");
+            }
+            Files.move(tempFile.toPath(), statusFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e){
+            log.log(Level.WARNING, "Could not write progress to " + statusFile + ": " + e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,245 @@
+package nhs.genetics.cardiff;
+
+import htsjdk.variant.vcf.VCFFileReader;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A class for running import jobs against an open database. Jobs are properties files dropped into a spool directory:
+ * vcf=path to VCF, mode=genotypes|annotations|reannotate (default genotypes), threads=re-annotation threads (default 1).
+ * Staging segments written to the spool directory are applied as jobs too, resuming from their checkpoint after a restart.
+ * A failed segment is retried with exponential backoff and renamed to .segment.failed after maxSegmentAttempts; rename
+ * it back to retry from its checkpoint.
+ * State is written to a status file next to each job and VCF read progress to a .progress file; create a file named shutdown in the spool directory to stop.
+ *
+ * @author  agent
+ * @version 1.0
+ * @since   2026-10-19
+ */
+public class ImportServer {
+    private static final Logger log = Logger.getLogger(ImportServer.class.getName());
+
+    private static final long pollIntervalMillis = 5000;
+    private static final int maxSegmentAttempts = 5;
+
+    private final VariantDatabase variantDatabase;
+    private final File spoolDirectory;
+    private final int concurrentJobs;
+    private final long progressIntervalSeconds;
+    private final Set<File> claimedSegments = ConcurrentHashMap.newKeySet(); //segments being applied, released when done so failures are retried
+    private final ConcurrentHashMap<File, Integer> segmentAttempts = new ConcurrentHashMap<>(); //failed attempts since the server started
+    private final ConcurrentHashMap<File, Long> segmentRetryTimes = new ConcurrentHashMap<>(); //earliest retry after a failure
+
+    public enum JobState {
+        QUEUED, RUNNING, COMPLETED, FAILED
+    }
+
+    public ImportServer(VariantDatabase variantDatabase, File spoolDirectory, int concurrentJobs, long progressIntervalSeconds){
+        this.variantDatabase = variantDatabase;
+        this.spoolDirectory = spoolDirectory;
+        this.concurrentJobs = concurrentJobs;
+        this.progressIntervalSeconds = progressIntervalSeconds;
+    }
+
+    public void run() throws InterruptedException {
+        log.log(Level.INFO, "Watching " + spoolDirectory + " for import jobs using " + concurrentJobs + " worker(s) ...");
+
+        ExecutorService executorService = Executors.newFixedThreadPool(concurrentJobs);
+        File shutdownFile = new File(spoolDirectory, "shutdown");
+
+        while (!shutdownFile.exists()){
+            File[] jobFiles = spoolDirectory.listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.endsWith(".job");
+                }
+            });
+
+            if (jobFiles != null){
+                for (final File jobFile : jobFiles){
+                    final File acceptedFile = new File(spoolDirectory, jobFile.getName() + ".accepted");
+
+                    //claim job so it is only queued once
+                    if (!jobFile.renameTo(acceptedFile)){
+                        continue;
+                    }
+
+                    final String jobName = jobFile.getName().substring(0, jobFile.getName().length() - 4);
+                    writeStatus(jobName, JobState.QUEUED, null);
+
+                    executorService.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            runJob(jobName, acceptedFile);
+                        }
+                    });
+                }
+            }
+
+            //apply staged genotypes
+            for (final File segment : StagingLog.getSegments(spoolDirectory)){
+
+                //backing off after a failure
+                Long retryTime = segmentRetryTimes.get(segment);
+                if (retryTime != null && retryTime > System.currentTimeMillis()){
+                    continue;
+                }
+
+                if (!claimedSegments.add(segment)){
+                    continue;
+                }
+
+                final String jobName = segment.getName().substring(0, segment.getName().length() - StagingLog.segmentExtension.length());
+                writeStatus(jobName, JobState.QUEUED, null);
+
+                executorService.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        runSegment(jobName, segment);
+                    }
+                });
+            }
+
+            Thread.sleep(pollIntervalMillis);
+        }
+
+        log.log(Level.INFO, "Shutdown requested, waiting for running jobs ...");
+
+        executorService.shutdown();
+        executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+        if (!shutdownFile.delete()) log.log(Level.WARNING, "Could not delete " + shutdownFile);
+    }
+
+    private void runJob(String jobName, File jobFile){
+        Properties job = new Properties();
+
+        try (FileInputStream fileInputStream = new FileInputStream(jobFile)){
+            job.load(fileInputStream);
+        } catch (IOException e){
+            log.log(Level.SEVERE, "Could not read job " + jobName + ": " + e.getMessage());
+            writeStatus(jobName, JobState.FAILED, e.getMessage());
+            return;
+        }
+
+        File vcfFile = new File(job.getProperty("vcf", ""));
+        String mode = job.getProperty("mode", "genotypes");
+        File vcfIndex = Main.getVcfIndex(vcfFile);
+
+        if (vcfIndex == null){
+            log.log(Level.SEVERE, "Job " + jobName + " failed: " + Main.getMissingIndexMessage(vcfFile));
+            writeStatus(jobName, JobState.FAILED, Main.getMissingIndexMessage(vcfFile));
+            return;
+        }
+
+        log.log(Level.INFO, "Running job " + jobName + ": " + mode + " " + vcfFile);
+        writeStatus(jobName, JobState.RUNNING, null);
+
+        try (VCFFileReader vcfFileReader = new VCFFileReader(vcfFile, vcfIndex)){
+            VariantDatabase session = variantDatabase.newSession(vcfFileReader);
+            session.setImportProgress(new ImportProgress(vcfFile, vcfIndex, progressIntervalSeconds, new File(spoolDirectory, jobName + ".progress")));
+
+            if (mode.equals("genotypes")){
+                session.addSampleAndRunInfoNodes();
+                session.importVariants();
+                session.writeNewVariantsToVCF(new File(spoolDirectory, jobName + ".imported.vcf"));
+            } else if (mode.equals("annotations")){
+                session.importAnnotations();
+            } else if (mode.equals("reannotate")){
+                session.reimportAnnotations(Integer.parseInt(job.getProperty("threads", "1")));
+            } else {
+                throw new IllegalArgumentException("Unknown mode: " + mode);
+            }
+
+            log.log(Level.INFO, "Completed job " + jobName);
+            writeStatus(jobName, JobState.COMPLETED, null);
+
+        } catch (Exception e){
+            log.log(Level.SEVERE, "Job " + jobName + " failed: " + e.getMessage());
+            writeStatus(jobName, JobState.FAILED, e.getMessage());
+        }
+
+    }
+
+    private void runSegment(String jobName, File segment){
+        log.log(Level.INFO, "Applying staged genotypes " + jobName);
+        writeStatus(jobName, JobState.RUNNING, null);
+
+        try {
+            variantDatabase.newSession(null).applyStagedVariants(segment);
+
+            segmentAttempts.remove(segment);
+            segmentRetryTimes.remove(segment);
+
+            log.log(Level.INFO, "Completed job " + jobName);
+            writeStatus(jobName, JobState.COMPLETED, null);
+
+        } catch (Exception e){
+            int attempts = segmentAttempts.containsKey(segment) ? segmentAttempts.get(segment) + 1 : 1;
+
+            if (attempts < maxSegmentAttempts){
+                long backOffMillis = pollIntervalMillis << attempts;
+
+                segmentAttempts.put(segment, attempts);
+                segmentRetryTimes.put(segment, System.currentTimeMillis() + backOffMillis);
+
+                log.log(Level.SEVERE, "Job " + jobName + " failed (attempt " + attempts + "), will retry from its checkpoint in " + backOffMillis / 1000 + "s: " + e.getMessage());
+                writeStatus(jobName, JobState.FAILED, e.getMessage());
+            } else {
+                quarantineSegment(jobName, segment, attempts, e);
+            }
+
+        } finally {
+            claimedSegments.remove(segment);
+        }
+
+    }
+
+    //stop retrying, the checkpoint is kept so the segment can be renamed back once fixed
+    private void quarantineSegment(String jobName, File segment, int attempts, Exception e){
+        File failedSegment = new File(segment.getPath() + ".failed");
+
+        segmentAttempts.remove(segment);
+        segmentRetryTimes.remove(segment);
+
+        if (!segment.renameTo(failedSegment)){
+            log.log(Level.SEVERE, "Could not quarantine " + segment + ", it will be retried");
+            writeStatus(jobName, JobState.FAILED, e.getMessage());
+            return;
+        }
+
+        log.log(Level.SEVERE, "Job " + jobName + " failed " + attempts + " times, quarantined as " + failedSegment + ": " + e.getMessage());
+        writeStatus(jobName, JobState.FAILED, "Quarantined as " + failedSegment.getName() + " after " + attempts + " attempts: " + e.getMessage());
+    }
+
+    private void writeStatus(String jobName, JobState jobState, String message){
+        Properties status = new Properties();
+        File statusFile = new File(spoolDirectory, jobName + ".status");
+        File tempFile = new File(spoolDirectory, jobName + ".status.tmp");
+
+        status.setProperty("state", jobState.toString());
+        status.setProperty("updated", new Date().toString());
+        if (message != null) status.setProperty("message", message);
+
+        try {
+            try (FileOutputStream fileOutputStream = new FileOutputStream(tempFile)){
+                status.store(fileOutputStream, jobName);
+            }
+            Files.move(tempFile.toPath(), statusFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e){
+            log.log(Level.WARNING, "Could not write status for job " + jobName + ": " + e.getMessage());
+        }
+    }
+
+}
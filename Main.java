@@ -6,7 +6,7 @@ import org.neo4j.io.fs.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.InvalidPropertiesFormatException;
+import java.util.ArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,50 +17,286 @@ public class Main {
     private static final Logger log = Logger.getLogger(Main.class.getName());
 
     private static final String version = "1.0.4";
-    private static boolean newDatabase = false, addAnnotations = false;
+    private static boolean newDatabase = false, addAnnotations = false, reannotate = false, rebuildCohortCounts = false, server = false, benchmark = false, compactStorage = false, applyStaged = false;
+    private static String exportWorklistId;
+    private static File annotationSourceConfig, annotatedVcf, baselineFile, stagingDirectory, progressFile, spoolDirectory, applyStagingDirectory, benchmarkResults, exportFile;
+    private static double maxRegression = 10;
+    private static long progressInterval = 60;
+    private static int threads = 1, novelVariantMemoryBudget = Integer.MAX_VALUE, concurrentJobs = 1, neighbourQueryCacheSize = 0;
 
-    public static void main(String[] args) throws InvalidPropertiesFormatException {
+    public static void main(String[] args) throws IOException {
+        ArrayList<String> arguments = new ArrayList<>(); //VCF and database paths
 
-        if (args.length < 2 || args.length > 3) {
-            System.err.println("ImportToNeo4j v" + version);
-            System.err.println("Usage: <VCF> <db>");
-            System.err.println("Options: -n New database, -a Annotated VCF");
+        if (args.length < 1) {
+            printUsage();
             System.exit(1);
         }
 
         log.log(Level.INFO, "ImportToNeo4j v" + version);
 
         //update or overwrite, genotype or annotations?
-        for (String arg : args){
-            if (arg.equals("-n")){
-                newDatabase = true;
-            } else if (arg.equals("-a")){
-                addAnnotations = true;
+        try {
+            for (int n = 0; n < args.length; ++n){
+                if (args[n].equals("-n")){
+                    newDatabase = true;
+                } else if (args[n].equals("-a")){
+                    addAnnotations = true;
+                } else if (args[n].equals("-r")){
+                    addAnnotations = true;
+                    reannotate = true;
+                } else if (args[n].equals("-c")){
+                    rebuildCohortCounts = true;
+                } else if (args[n].equals("-s")){
+                    spoolDirectory = new File(args[++n]);
+                } else if (args[n].equals("-b")){
+                    benchmarkResults = new File(args[++n]);
+                } else if (args[n].equals("-v")){
+                    annotatedVcf = new File(args[++n]);
+                } else if (args[n].equals("-l")){
+                    baselineFile = new File(args[++n]);
+                } else if (args[n].equals("-d")){
+                    maxRegression = Double.parseDouble(args[++n]);
+                } else if (args[n].equals("-x")){
+                    exportWorklistId = args[++n];
+                } else if (args[n].equals("-o")){
+                    exportFile = new File(args[++n]);
+                } else if (args[n].equals("-k")){
+                    compactStorage = true;
+                } else if (args[n].equals("-w")){
+                    stagingDirectory = new File(args[++n]);
+                } else if (args[n].equals("-p")){
+                    applyStagingDirectory = new File(args[++n]);
+                } else if (args[n].equals("-i")){
+                    progressInterval = Long.parseLong(args[++n]);
+                } else if (args[n].equals("-f")){
+                    progressFile = new File(args[++n]);
+                } else if (args[n].equals("-e")){
+                    annotationSourceConfig = new File(args[++n]);
+                } else if (args[n].equals("-j")){
+                    concurrentJobs = Integer.parseInt(args[++n]);
+                } else if (args[n].equals("-t")){
+                    threads = Integer.parseInt(args[++n]);
+                } else if (args[n].equals("-m")){
+                    novelVariantMemoryBudget = Integer.parseInt(args[++n]);
+                } else if (args[n].equals("-q")){
+                    neighbourQueryCacheSize = Integer.parseInt(args[++n]);
+                } else if (args[n].startsWith("-")){
+                    log.log(Level.SEVERE, "Unknown option " + args[n] + ". Check arguments.");
+                    System.exit(1);
+                } else {
+                    arguments.add(args[n]);
+                }
             }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e){
+            log.log(Level.SEVERE, "Could not parse options. Check arguments.");
+            System.exit(1);
         }
 
+        server = spoolDirectory != null;
+        benchmark = benchmarkResults != null;
+        applyStaged = applyStagingDirectory != null;
+
+        if (server && (rebuildCohortCounts || addAnnotations)){
+            log.log(Level.SEVERE, "Server mode takes import jobs from the spool directory. Check arguments.");
+            System.exit(1);
+        }
+        if (benchmark && (server || rebuildCohortCounts || addAnnotations || newDatabase)){
+            log.log(Level.SEVERE, "Benchmark mode imports into a temporary database. Check arguments.");
+            System.exit(1);
+        }
+        if (exportWorklistId != null && (server || benchmark || rebuildCohortCounts || addAnnotations || newDatabase)){
+            log.log(Level.SEVERE, "Cannot export and import simultaneously. Check arguments.");
+            System.exit(1);
+        }
+        if ((exportWorklistId == null) != (exportFile == null)){
+            log.log(Level.SEVERE, "Export needs a worklist and an output file. Check arguments.");
+            System.exit(1);
+        }
+        if (stagingDirectory != null && (server || benchmark || rebuildCohortCounts || addAnnotations || newDatabase || applyStaged || exportWorklistId != null)){
+            log.log(Level.SEVERE, "Staging only writes genotypes to the staging directory. Check arguments.");
+            System.exit(1);
+        }
+        if (applyStaged && (server || benchmark || rebuildCohortCounts || addAnnotations || exportWorklistId != null)){
+            log.log(Level.SEVERE, "Staged genotypes are applied from the staging directory. Check arguments.");
+            System.exit(1);
+        }
+        if (compactStorage && !newDatabase && !benchmark){
+            log.log(Level.SEVERE, "Compact storage can only be chosen for a new database. Check arguments.");
+            System.exit(1);
+        }
+        if (threads < 1 || concurrentJobs < 1){
+            log.log(Level.SEVERE, "Number of threads and concurrent jobs must be at least one. Check arguments.");
+            System.exit(1);
+        }
+        if (rebuildCohortCounts && (newDatabase || addAnnotations)){
+            log.log(Level.SEVERE, "Cannot rebuild cohort counts and import simultaneously. Check arguments.");
+            System.exit(1);
+        }
         if (newDatabase && addAnnotations){
             log.log(Level.SEVERE, "Cannot create new database and add annotations simultaneously. Check arguments.");
             System.exit(1);
         }
+        if (progressInterval < 1){
+            log.log(Level.SEVERE, "Progress interval must be at least one second. Check arguments.");
+            System.exit(1);
+        }
+        if (neighbourQueryCacheSize < 0){
+            log.log(Level.SEVERE, "Neighbour lookup cache size cannot be negative. Check arguments.");
+            System.exit(1);
+        }
+        if (novelVariantMemoryBudget < 1){
+            log.log(Level.SEVERE, "Novel variant memory budget must be at least one. Check arguments.");
+            System.exit(1);
+        }
+
+        //benchmark takes an optional VCF, staging a VCF, database modes a database and imports both
+        boolean validArguments;
+        if (benchmark){
+            validArguments = arguments.size() <= 1;
+        } else if (stagingDirectory != null || server || applyStaged || rebuildCohortCounts || exportWorklistId != null){
+            validArguments = arguments.size() == 1;
+        } else {
+            validArguments = arguments.size() == 2;
+        }
+
+        if (!validArguments){
+            printUsage();
+            System.exit(1);
+        }
+
+        //time a full import against a baseline
+        if (benchmark){
+            ImportBenchmark importBenchmark = new ImportBenchmark(arguments.size() == 1 ? new File(arguments.get(0)) : null, benchmarkResults);
+            importBenchmark.setAnnotatedVcf(annotatedVcf);
+            importBenchmark.setAnnotationSourceConfig(annotationSourceConfig);
+            importBenchmark.setNovelVariantMemoryBudget(novelVariantMemoryBudget);
+            importBenchmark.setCompactStorage(compactStorage);
+            if (baselineFile != null) importBenchmark.setBaseline(baselineFile, maxRegression);
+
+            if (!importBenchmark.run()){
+                log.log(Level.SEVERE, "Import throughput regressed beyond " + maxRegression + "% of baseline.");
+                System.exit(1);
+            }
+
+            return;
+        }
+
+        //write genotypes to the staging log and return without waiting for the database
+        if (stagingDirectory != null){
+            File vcfFile = new File(arguments.get(0));
+            VCFFileReader vcfFileReader = openVcf(vcfFile);
+
+            VariantDatabase variantDatabase = new VariantDatabase(vcfFileReader, null);
+            variantDatabase.setImportProgress(new ImportProgress(vcfFile, getVcfIndex(vcfFile), progressInterval, progressFile));
+
+            try {
+                variantDatabase.stageVariants(stagingDirectory);
+            } catch (IOException e){
+                log.log(Level.SEVERE, "Could not stage variants: " + e.getMessage());
+                System.exit(1);
+            }
+
+            vcfFileReader.close();
+            return;
+        }
+
+        File dbPath = new File(arguments.get(arguments.size() - 1));
 
         if (newDatabase) {
             log.log(Level.INFO, "Deleting existing database");
             try{
-                FileUtils.deleteRecursively(new File(args[1]));
+                FileUtils.deleteRecursively(dbPath);
             } catch (IOException e){
                 log.log(Level.SEVERE, "Could not delete database: " + e.getMessage());
                 System.exit(1);
             }
         }
 
-        log.log(Level.INFO, "Importing " + args[0] + " to " + args[1]);
+        //accept import jobs until shutdown is requested
+        if (server){
+            VariantDatabase variantDatabase = new VariantDatabase(null, dbPath);
+            variantDatabase.setNovelVariantMemoryBudget(novelVariantMemoryBudget);
+            variantDatabase.setAnnotationSourceConfig(annotationSourceConfig);
+            variantDatabase.setCompactStorage(compactStorage);
+            variantDatabase.setNeighbourQueryCacheSize(neighbourQueryCacheSize);
+            variantDatabase.startDatabase();
+
+            if (newDatabase) variantDatabase.createIndexes();
+
+            try {
+                new ImportServer(variantDatabase, spoolDirectory, concurrentJobs, progressInterval).run();
+            } catch (InterruptedException e){
+                log.log(Level.WARNING, "Server interrupted");
+            }
+
+            variantDatabase.shutdownDatabase();
+            return;
+        }
+
+        //drain staged genotypes into the database
+        if (applyStaged){
+            VariantDatabase variantDatabase = new VariantDatabase(null, dbPath);
+            variantDatabase.setNovelVariantMemoryBudget(novelVariantMemoryBudget);
+            variantDatabase.setCompactStorage(compactStorage);
+            variantDatabase.startDatabase();
+
+            if (newDatabase) variantDatabase.createIndexes();
+
+            for (File segment : StagingLog.getSegments(applyStagingDirectory)){
+                try {
+                    variantDatabase.newSession(null).applyStagedVariants(segment);
+                } catch (IOException e){
+                    log.log(Level.SEVERE, "Could not apply " + segment + ": " + e.getMessage());
+                    variantDatabase.shutdownDatabase();
+                    System.exit(1);
+                }
+            }
+
+            variantDatabase.shutdownDatabase();
+            return;
+        }
+
+        //rebuild cohort counts from existing genotypes
+        if (rebuildCohortCounts){
+            VariantDatabase variantDatabase = new VariantDatabase(null, dbPath);
+            variantDatabase.startDatabase();
+            variantDatabase.rebuildCohortCounts(threads);
+            variantDatabase.indexVariantPositions(threads);
+            variantDatabase.shutdownDatabase();
+            return;
+        }
+
+        //write worklist genotypes to VCF
+        if (exportWorklistId != null){
+            VariantDatabase variantDatabase = new VariantDatabase(null, dbPath);
+            variantDatabase.setNeighbourQueryCacheSize(neighbourQueryCacheSize);
+            variantDatabase.startDatabase();
+
+            try {
+                variantDatabase.exportWorklist(exportWorklistId, exportFile, threads);
+            } catch (IOException e){
+                log.log(Level.SEVERE, "Could not export worklist: " + e.getMessage());
+                variantDatabase.shutdownDatabase();
+                System.exit(1);
+            }
+
+            variantDatabase.shutdownDatabase();
+            return;
+        }
+
+        File vcfFile = new File(arguments.get(0));
+        log.log(Level.INFO, "Importing " + vcfFile + " to " + dbPath);
 
         //create VCF file parser
-        VCFFileReader vcfFileReader = new VCFFileReader(new File(args[0]), new File(args[0] + ".idx"));
+        VCFFileReader vcfFileReader = openVcf(vcfFile);
 
         //create database object
-        VariantDatabase variantDatabase = new VariantDatabase(vcfFileReader, new File(args[1]));
+        VariantDatabase variantDatabase = new VariantDatabase(vcfFileReader, dbPath);
+        variantDatabase.setNovelVariantMemoryBudget(novelVariantMemoryBudget);
+        variantDatabase.setAnnotationSourceConfig(annotationSourceConfig);
+        variantDatabase.setCompactStorage(compactStorage);
+        variantDatabase.setImportProgress(new ImportProgress(vcfFile, getVcfIndex(vcfFile), progressInterval, progressFile));
+
         variantDatabase.startDatabase();
 
         //add genotypes
@@ -75,9 +311,17 @@ public class Main {
                 System.exit(1);
             }
 
-            variantDatabase.importVariants();
+            try {
+                variantDatabase.importVariants();
+            } catch (IOException e){
+                log.log(Level.SEVERE, "Could not import variants: " + e.getMessage());
+                System.exit(1);
+            }
+
             variantDatabase.writeNewVariantsToVCF();
 
+        } else if (reannotate) {
+            variantDatabase.reimportAnnotations(threads);
         } else {
             variantDatabase.importAnnotations();
         }
@@ -87,4 +331,41 @@ public class Main {
 
     }
 
+    private static void printUsage(){
+        System.err.println("ImportToNeo4j v" + version);
+        System.err.println("Usage: <VCF> <db> Import genotypes or annotations");
+        System.err.println("       <db> -c Rebuild cohort counts and carriers and index variant positions");
+        System.err.println("       <db> -s <dir> Server mode, run import jobs from the spool directory");
+        System.err.println("       <db> -p <dir> Apply staged genotypes from the staging directory");
+        System.err.println("       <db> -x <worklistId> -o <file> Export worklist genotypes to .vcf.gz");
+        System.err.println("       <VCF> -w <dir> Stage genotypes for later import without opening the database");
+        System.err.println("       [<VCF>] -b <file> Benchmark import into a temporary database and write results JSON, synthetic data without VCF");
+        System.err.println("Options: -n New database, -a Annotated VCF, -r Replace existing annotations with annotated VCF, -t <n> Worker threads, -m <n> Novel variants held in memory before spilling to disk, -j <n> Concurrent server jobs, -e <file> Annotation sources, -v <file> Annotated VCF to benchmark, -l <file> Baseline results, -d <n> Tolerated throughput regression percent, -k Compact storage (new databases only), -i <n> Progress interval in seconds, -f <file> Progress status file, -q <n> Neighbour lookups cached between commits (server and export)");
+    }
+
+    //exits if the VCF is not indexed
+    private static VCFFileReader openVcf(File vcfFile){
+        File vcfIndex = getVcfIndex(vcfFile);
+
+        if (vcfIndex == null){
+            log.log(Level.SEVERE, getMissingIndexMessage(vcfFile));
+            System.exit(1);
+        }
+
+        return new VCFFileReader(vcfFile, vcfIndex);
+    }
+
+    //tribble index for plain text VCF, tabix for BGZF compressed VCF; CSI cannot be read by htsjdk
+    static File getVcfIndex(File vcfFile){
+        File index = new File(vcfFile.getPath() + (vcfFile.getName().endsWith(".gz") ? ".tbi" : ".idx"));
+        return index.isFile() ? index : null;
+    }
+
+    static String getMissingIndexMessage(File vcfFile){
+        if (new File(vcfFile.getPath() + ".csi").isFile()){
+            return "CSI index found for " + vcfFile + " but CSI is not supported. Create a tabix index with tabix -p vcf.";
+        }
+        return "Could not find index for " + vcfFile + ". Expected .idx for uncompressed VCF or .tbi for BGZF compressed VCF.";
+    }
+
 }
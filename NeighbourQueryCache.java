@@ -0,0 +1,83 @@
+package nhs.genetics.cardiff;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A class for caching neighbour lookups. Each commit starts a new generation; results are stored with the generation
+ * their query started in and ignored once a commit has followed, so a query racing a commit cannot cache stale data.
+ * Arrays are copied in and out so callers cannot modify cached results.
+ *
+ * @author  agent
+ * @version 1.0
+ * @since   2026-10-19
+ */
+public class NeighbourQueryCache extends TransactionEventHandler.Adapter<Object> {
+
+    private final int maxEntries;
+    private final AtomicLong generation = new AtomicLong();
+    private ConcurrentHashMap<String, Entry> results = new ConcurrentHashMap<>();
+
+    public NeighbourQueryCache(int maxEntries){
+        this.maxEntries = maxEntries;
+    }
+
+    //invalidate cache on commits
+    public void register(final GraphDatabaseService graphDb){
+        graphDb.registerTransactionEventHandler(this);
+    }
+
+    public void unregister(final GraphDatabaseService graphDb){
+        graphDb.unregisterTransactionEventHandler(this);
+        results.clear();
+    }
+
+    //read before querying the graph and pass to put
+    public long getGeneration(){
+        return generation.get();
+    }
+
+    public Object get(String key){
+        Entry entry = results.get(key);
+
+        if (entry == null || entry.generation != generation.get()){
+            return null;
+        }
+
+        return copy(entry.result);
+    }
+
+    public void put(String key, Object result, long queryGeneration){
+        if (queryGeneration != generation.get()){
+            return;
+        }
+
+        if (results.size() >= maxEntries) results.clear();
+        results.put(key, new Entry(queryGeneration, copy(result)));
+    }
+
+    @Override
+    public void afterCommit(TransactionData data, Object state) {
+        generation.incrementAndGet();
+        results.clear();
+    }
+
+    private static Object copy(Object result){
+        return result instanceof long[] ? ((long[]) result).clone() : result;
+    }
+
+    private static class Entry {
+        private final long generation;
+        private final Object result;
+
+        private Entry(long generation, Object result){
+            this.generation = generation;
+            this.result = result;
+        }
+    }
+
+}
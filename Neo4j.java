@@ -5,6 +5,7 @@ import org.neo4j.graphdb.schema.IndexDefinition;
 import org.neo4j.graphdb.schema.Schema;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -16,9 +17,26 @@ import java.util.concurrent.TimeUnit;
  */
 public class Neo4j{
 
+    private static final ConcurrentHashMap<GraphDatabaseService, NeighbourQueryCache> neighbourQueryCaches = new ConcurrentHashMap<>();
+
+
     public static void shutdownDatabase(final GraphDatabaseService graphDb){
+        disableNeighbourQueryCache(graphDb);
         graphDb.shutdown();
     }
+
+    //cache batched neighbour lookups until the next commit
+    public static void enableNeighbourQueryCache(final GraphDatabaseService graphDb, int maxEntries){
+        NeighbourQueryCache cache = new NeighbourQueryCache(maxEntries);
+
+        cache.register(graphDb);
+        NeighbourQueryCache previous = neighbourQueryCaches.put(graphDb, cache);
+        if (previous != null) previous.unregister(graphDb);
+    }
+    public static void disableNeighbourQueryCache(final GraphDatabaseService graphDb){
+        NeighbourQueryCache cache = neighbourQueryCaches.remove(graphDb);
+        if (cache != null) cache.unregister(graphDb);
+    }
     public static void registerShutdownHook( final GraphDatabaseService graphDb )
     {
         // Registers a shutdown hook for the Neo4j instance so that it
@@ -65,6 +83,21 @@ public class Neo4j{
         }
 
     }
+    public static boolean hasIndex(final GraphDatabaseService graphDb, final Label label, final String property){
+
+        try ( Transaction tx = graphDb.beginTx() )
+        {
+            for (IndexDefinition indexDefinition : graphDb.schema().getIndexes(label)){
+                for (String key : indexDefinition.getPropertyKeys()){
+                    if (key.equals(property)) return true;
+                }
+            }
+
+            tx.success();
+        }
+
+        return false;
+    }
     public static void createConstraint(final GraphDatabaseService graphDb, final Label label, final String property) {
 
         try ( Transaction tx = graphDb.beginTx() )
@@ -112,6 +145,26 @@ public class Neo4j{
 
         return node;
 
+    }
+    public static Node addNode(final GraphDatabaseService graphDb, final Label[] labels, HashMap<String, Object> properties){
+
+        Node node;
+
+        try ( Transaction tx = graphDb.beginTx() )
+        {
+            node = graphDb.createNode( labels );
+
+            if (properties != null) {
+                for (Map.Entry<String, Object> property : properties.entrySet()){
+                    node.setProperty(property.getKey(), property.getValue());
+                }
+            }
+
+            tx.success();
+        }
+
+        return node;
+
     }
     public static ArrayList<Node> getNodes(final GraphDatabaseService graphDb, final Label label, final String field, final Object value){
 
@@ -157,40 +210,185 @@ public class Neo4j{
 
         return nodeIds;
     }
+    public static ArrayList<Long> getNodeIdsInRange(final GraphDatabaseService graphDb, final Label label, final String field, final Collection<Object> values, final String rangeField, final long start, final long end){
+
+        Node node;
+        ArrayList<Long> nodeIds = new ArrayList<>();
+
+        try ( Transaction tx = graphDb.beginTx() )
+        {
+            for (Object value : values){
+                try ( ResourceIterator<Node> users = graphDb.findNodes( label, field, value ) )
+                {
+
+                    while ( users.hasNext() )
+                    {
+                        node = users.next();
+
+                        //check node lies within range
+                        long position = ((Number) node.getProperty(rangeField)).longValue();
+                        if (position >= start && position <= end){
+                            nodeIds.add(node.getId());
+                        }
+                    }
+
+                }
+            }
+
+            tx.success();
+        }
+
+        return nodeIds;
+    }
+    public static ArrayList<Long> getNodeIds(final GraphDatabaseService graphDb, final Label label){
+
+        ArrayList<Long> nodeIds = new ArrayList<>();
+
+        try ( Transaction tx = graphDb.beginTx() )
+        {
+            try ( ResourceIterator<Node> users = graphDb.findNodes( label ) )
+            {
+
+                while ( users.hasNext() )
+                {
+                    nodeIds.add(users.next().getId());
+                }
+
+            }
+
+            tx.success();
+        }
+
+        return nodeIds;
+    }
     public static Node matchOrCreateUniqueNode(final GraphDatabaseService graphDb, Label label, String field, Object value) throws InvalidPropertiesFormatException{
-        ArrayList<Node> nodes = getNodes(graphDb, label, field, value);
+        return mergeNode(graphDb, label, field, value, null, null).getNode();
+    }
 
-        if (nodes.size() == 1){
-            return nodes.get(0);
-        } else if (nodes.size() > 1){
-            throw new InvalidPropertiesFormatException("Multiple nodes already exists for: " + label.name() + " " + field + " " + value);
+    /**
+     * Get-or-create of a node keyed on a property with a uniqueness constraint. MERGE locks the constraint's index
+     * entry until the outermost transaction commits, so concurrent sessions creating the same node wait rather than
+     * duplicate it; deadlocks are detected by Neo4j and reported as transient failures.
+     *
+     * @param labels additional labels for a created node, or null
+     * @param properties additional properties for a created node, or null
+     */
+    public static MergedNode mergeNode(final GraphDatabaseService graphDb, Label label, String field, Object value, Collection<Label> labels, Map<String, Object> properties) throws InvalidPropertiesFormatException{
+        StringBuilder cypherQuery = new StringBuilder("MERGE (n:`" + label.name() + "` {`" + field + "`: {value}}) ON CREATE SET n += {properties}");
+        HashMap<String, Object> parameters = new HashMap<>();
+        MergedNode mergedNode;
+
+        if (labels != null && labels.size() > 0){
+            cypherQuery.append(", n");
+            for (Label createLabel : labels){
+                cypherQuery.append(":`").append(createLabel.name()).append("`");
+            }
         }
+        cypherQuery.append(" RETURN n");
+
+        parameters.put("value", value);
+        parameters.put("properties", properties != null ? properties : Collections.<String, Object>emptyMap());
+
+        try (Transaction tx = graphDb.beginTx();
+             Result result = graphDb.execute(cypherQuery.toString(), parameters)) {
 
-        HashMap<String, Object> props = new HashMap<>();
-        props.put(field, value);
+            Node node = (Node) result.next().get("n");
 
-        return addNode(graphDb, label, props);
+            if (result.hasNext()){
+                throw new InvalidPropertiesFormatException("Multiple nodes already exists for: " + label.name() + " " + field + " " + value);
+            }
+
+            mergedNode = new MergedNode(node, result.getQueryStatistics().getNodesCreated() > 0);
+
+            tx.success();
+        }
+
+        return mergedNode;
+    }
+    public static class MergedNode {
+        private final Node node;
+        private final boolean created;
+
+        private MergedNode(Node node, boolean created){
+            this.node = node;
+            this.created = created;
+        }
+
+        public Node getNode() {
+            return node;
+        }
+
+        //false if the node already existed
+        public boolean isCreated() {
+            return created;
+        }
     }
     public static ArrayList<Map<String, Object>> runCypherQuery(final GraphDatabaseService graphDb, String cypherQuery){
-        ArrayList<Map<String, Object>> results = new ArrayList<>();
+        return runCypherQuery(graphDb, cypherQuery, Collections.<String, Object>emptyMap());
+    }
+    public static ArrayList<Map<String, Object>> runCypherQuery(final GraphDatabaseService graphDb, String cypherQuery, Map<String, Object> parameters){
+        final ArrayList<Map<String, Object>> results = new ArrayList<>();
+
+        streamCypherQuery(graphDb, cypherQuery, parameters, 0, -1, new RowHandler() {
+            @Override
+            public boolean handle(Map<String, Object> row) {
+                results.add(row);
+                return true;
+            }
+        });
+
+        return results;
+    }
+    /**
+     * Passes rows to the handler as they are read, inside the query transaction. Use parameters rather than
+     * building query strings so the plan is cached. Pages are applied by the query as SKIP {skip} LIMIT {limit}, so
+     * the query must end with its RETURN clause and cannot use parameters named skip or limit.
+     *
+     * @param skip rows to discard before the first row handled
+     * @param limit maximum rows to handle, or -1 for all rows
+     * @return number of rows handled
+     */
+    public static long streamCypherQuery(final GraphDatabaseService graphDb, String cypherQuery, Map<String, Object> parameters, long skip, long limit, RowHandler rowHandler){
+        HashMap<String, Object> pageParameters = new HashMap<>();
+        long rows = 0;
+
+        if (parameters != null) pageParameters.putAll(parameters);
+
+        //page in the query rather than discarding rows here
+        if (skip > 0){
+            cypherQuery += " SKIP {skip}";
+            pageParameters.put("skip", skip);
+        }
+        if (limit >= 0){
+            cypherQuery += " LIMIT {limit}";
+            pageParameters.put("limit", limit);
+        }
 
         try ( Transaction tx = graphDb.beginTx();
-              Result result = graphDb.execute(cypherQuery) )
+              Result result = graphDb.execute(cypherQuery, pageParameters) )
         {
             while ( result.hasNext() )
             {
-                results.add(result.next());
+                ++rows;
+
+                if (!rowHandler.handle(result.next())){
+                    break;
+                }
             }
 
             tx.success();
         }
 
-        return results;
+        return rows;
+    }
+    public interface RowHandler {
+        //return false to stop reading rows
+        boolean handle(Map<String, Object> row);
     }
-    public static void createRelationship(final GraphDatabaseService graphDb, Node node1, Node node2, RelationshipType type, HashMap<String, Object> properties){
+    public static boolean createRelationship(final GraphDatabaseService graphDb, Node node1, Node node2, RelationshipType type, HashMap<String, Object> properties){
 
         if (hasRelationship(graphDb, node1, node2, type, Direction.OUTGOING)){
-            return;
+            return false;
         }
 
         //add relationship
@@ -208,6 +406,20 @@ public class Neo4j{
             tx.success();
         }
 
+        return true;
+    }
+    public static void createRelationships(final GraphDatabaseService graphDb, Node node1, Node node2, Collection<RelationshipType> types){
+
+        //add relationships without checking for existing ones
+        try (Transaction tx = graphDb.beginTx()) {
+
+            for (RelationshipType type : types){
+                node1.createRelationshipTo(node2, type);
+            }
+
+            tx.success();
+        }
+
     }
     public static boolean hasRelationship(final GraphDatabaseService graphDb, Node node1, Node node2, RelationshipType type, Direction direction){
 
@@ -217,6 +429,7 @@ public class Neo4j{
             for (Relationship relationship : node1.getRelationships(type, direction)){
 
                 if (relationship.getOtherNode(node1).getId() == node2.getId()){
+                    tx.success();
                     return true;
                 }
 
@@ -239,6 +452,87 @@ public class Neo4j{
             tx.success();
         }
 
+    }
+    public static void setNodeProperties(final GraphDatabaseService graphDb, Node node, HashMap<String, Object> properties){
+
+        try (Transaction tx = graphDb.beginTx()) {
+
+            //set properties, overwriting existing values
+            for (Map.Entry<String, Object> property : properties.entrySet()){
+                node.setProperty(property.getKey(), property.getValue());
+            }
+
+            tx.success();
+        }
+
+    }
+    public static void incrementNodeProperty(final GraphDatabaseService graphDb, Node node, String key, int amount){
+
+        try (Transaction tx = graphDb.beginTx()) {
+
+            //lock node so concurrent increments are not lost
+            tx.acquireWriteLock(node);
+            node.setProperty(key, (Integer) node.getProperty(key, 0) + amount);
+
+            tx.success();
+        }
+
+    }
+    public static void removeNodeProperties(final GraphDatabaseService graphDb, Node node, Collection<String> keys){
+
+        try (Transaction tx = graphDb.beginTx()) {
+
+            //remove properties
+            for (String key : keys){
+                node.removeProperty(key);
+            }
+
+            tx.success();
+        }
+
+    }
+    public static void deleteRelationships(final GraphDatabaseService graphDb, Node node, RelationshipType type, Direction direction){
+
+        try (Transaction tx = graphDb.beginTx()) {
+
+            for (Relationship relationship : node.getRelationships(type, direction)){
+                relationship.delete();
+            }
+
+            tx.success();
+        }
+
+    }
+    public static void deleteNeighbourNodes(final GraphDatabaseService graphDb, Node startNode, Label endLabel, Direction direction){
+
+        Node tempNode;
+        HashSet<Node> nodes = new HashSet<>();
+
+        try (Transaction tx = graphDb.beginTx()) {
+
+            for (Relationship relationship : startNode.getRelationships(direction)){
+
+                //get connecting node
+                tempNode = relationship.getOtherNode(startNode);
+
+                //check node has required label
+                if (tempNode.hasLabel(endLabel)){
+                    nodes.add(tempNode);
+                }
+
+            }
+
+            //delete nodes and all of their relationships
+            for (Node node : nodes){
+                for (Relationship relationship : node.getRelationships()){
+                    relationship.delete();
+                }
+                node.delete();
+            }
+
+            tx.success();
+        }
+
     }
     public static void addNodeLabel(final GraphDatabaseService graphDb, Node node, Label label){
 
@@ -331,6 +625,7 @@ public class Neo4j{
                     }
 
                     if (allPropertiesMatched){
+                        tx.success();
                         return true;
                     }
                 }
@@ -341,6 +636,109 @@ public class Neo4j{
 
         return false;
     }
+    public static HashMap<Long, long[]> findNeighbourNodeIds(final GraphDatabaseService graphDb, Collection<Long> startNodeIds, Label endLabel, Direction direction){
+        return findNeighbourNodeIdsWithParameters(graphDb, startNodeIds, endLabel, direction, null, null);
+    }
+    public static HashMap<Long, long[]> findNeighbourNodeIdsWithParameters(final GraphDatabaseService graphDb, Collection<Long> startNodeIds, Label endLabel, Direction direction, RelationshipType relationshipType, HashMap<String, Object> properties){
+
+        HashMap<Long, long[]> nodeIds = new HashMap<>();
+        NeighbourQueryCache cache = neighbourQueryCaches.get(graphDb);
+
+        try (Transaction tx = graphDb.beginTx()){
+            for (Long startNodeId : startNodeIds){
+                String key = "findNeighbourNodeIds:" + startNodeId + ":" + endLabel.name() + ":" + direction + ":" + (relationshipType == null ? "" : relationshipType.name()) + ":" + properties;
+                long generation = cache != null ? cache.getGeneration() : 0;
+
+                //use cached result
+                long[] cached = cache != null ? (long[]) cache.get(key) : null;
+                if (cached != null){
+                    nodeIds.put(startNodeId, cached);
+                    continue;
+                }
+
+                Node startNode = graphDb.getNodeById(startNodeId);
+                ArrayList<Long> tempNodeIds = new ArrayList<>();
+                Iterable<Relationship> relationships = relationshipType == null ? startNode.getRelationships(direction) : startNode.getRelationships(direction, relationshipType);
+
+                for (Relationship relationship : relationships){
+
+                    //get connecting node
+                    Node tempNode = relationship.getOtherNode(startNode);
+
+                    //check node has required label and properties
+                    if (tempNode.hasLabel(endLabel) && hasProperties(tempNode, properties)){
+                        tempNodeIds.add(tempNode.getId());
+                    }
+
+                }
+
+                long[] result = new long[tempNodeIds.size()];
+                for (int n = 0; n < result.length; ++n){
+                    result[n] = tempNodeIds.get(n);
+                }
+
+                nodeIds.put(startNodeId, result);
+                if (cache != null) cache.put(key, result, generation);
+            }
+
+            tx.success();
+        }
+
+        return nodeIds;
+    }
+    public static HashSet<Long> getNeighbourNodeIdsWithSuppliedProperties(final GraphDatabaseService graphDb, Collection<Long> startNodeIds, long endNodeId, Direction direction, RelationshipType relationshipType, HashMap<String, Object> properties){
+
+        HashSet<Long> nodeIds = new HashSet<>();
+        NeighbourQueryCache cache = neighbourQueryCaches.get(graphDb);
+
+        try (Transaction tx = graphDb.beginTx()){
+            for (Long startNodeId : startNodeIds){
+                String key = "isNeighbourNode:" + startNodeId + ":" + endNodeId + ":" + direction + ":" + relationshipType.name() + ":" + properties;
+                long generation = cache != null ? cache.getGeneration() : 0;
+
+                //use cached result
+                Boolean cached = cache != null ? (Boolean) cache.get(key) : null;
+                if (cached != null){
+                    if (cached) nodeIds.add(startNodeId);
+                    continue;
+                }
+
+                Node startNode = graphDb.getNodeById(startNodeId);
+                boolean isNeighbour = false;
+
+                for (Relationship relationship : startNode.getRelationships(direction, relationshipType)){
+
+                    //check if node is endnode with matching relationship properties
+                    if (relationship.getOtherNode(startNode).getId() == endNodeId && hasProperties(relationship, properties)){
+                        isNeighbour = true;
+                        break;
+                    }
+
+                }
+
+                if (isNeighbour) nodeIds.add(startNodeId);
+                if (cache != null) cache.put(key, isNeighbour, generation);
+            }
+
+            tx.success();
+        }
+
+        return nodeIds;
+    }
+    private static boolean hasProperties(PropertyContainer propertyContainer, HashMap<String, Object> properties){
+
+        if (properties == null){
+            return true;
+        }
+
+        for (Map.Entry<String, Object> property : properties.entrySet()){
+            if (!property.getValue().equals(propertyContainer.getProperty(property.getKey(), null))){
+                return false;
+            }
+        }
+
+        return true;
+    }
     public static ArrayList<String> getNodeLabels(final GraphDatabaseService graphDb, Node node){
         ArrayList<String> labels = new ArrayList<>();
 
@@ -348,6 +746,8 @@ public class Neo4j{
             for (Label label : node.getLabels()) {
                 labels.add(label.toString());
             }
+
+            tx.success();
         }
 
         return labels;
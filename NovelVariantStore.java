@@ -0,0 +1,265 @@
+package nhs.genetics.cardiff;
+
+import org.neo4j.graphdb.Node;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A class for tracking variants added during an import session. Beyond the memory budget variants are
+ * spilled to sorted runs on disk which are merged when written out, at most maxMergeFanIn runs at a time.
+ *
+ * @author  agent
+ * @version 1.0
+ * @since   2026-10-19
+ */
+public class NovelVariantStore {
+    private static final Logger log = Logger.getLogger(NovelVariantStore.class.getName());
+
+    private static final int maxMergeFanIn = 64; //spilled runs open at once while merging
+
+    private final int memoryBudget;
+    private final Comparator<Record> recordComparator;
+    private HashMap<GenomeVariant, Node> variantNodes = new HashMap<>(); //variants held in memory
+    private ArrayList<File> runs = new ArrayList<>(); //sorted variants spilled to disk
+
+    public NovelVariantStore(int memoryBudget, final Comparator<String> contigComparator){
+        this.memoryBudget = memoryBudget;
+        this.recordComparator = new Comparator<Record>() {
+            @Override
+            public int compare(Record record1, Record record2) {
+                int compare = contigComparator.compare(record1.contig, record2.contig);
+                if (compare == 0) compare = Integer.compare(record1.pos, record2.pos);
+                if (compare == 0) compare = record1.ref.compareTo(record2.ref);
+                if (compare == 0) compare = record1.alt.compareTo(record2.alt);
+                return compare;
+            }
+        };
+    }
+
+    /**
+     * @return the node for a variant held in memory or null if absent or spilled to disk
+     */
+    public Node get(GenomeVariant genomeVariant){
+        return variantNodes.get(genomeVariant);
+    }
+
+    public void put(GenomeVariant genomeVariant, Node node) throws IOException {
+        variantNodes.put(genomeVariant, node);
+
+        if (variantNodes.size() >= memoryBudget){
+            spill();
+        }
+    }
+
+    //write variants as VCF records sorted by position, removing duplicates
+    public void write(PrintWriter printWriter) throws IOException {
+
+        //merge spilled runs in passes until the final merge is within the fan-in
+        while (runs.size() > maxMergeFanIn){
+            ArrayList<File> mergedRuns = new ArrayList<>();
+
+            log.log(Level.INFO, "Merging " + runs.size() + " spilled runs of novel variants ...");
+
+            for (int n = 0; n < runs.size(); n += maxMergeFanIn){
+                List<File> group = runs.subList(n, Math.min(n + maxMergeFanIn, runs.size()));
+
+                if (group.size() == 1){
+                    mergedRuns.add(group.get(0));
+                    continue;
+                }
+
+                File file = createRunFile();
+                mergedRuns.add(file);
+
+                try (PrintWriter runWriter = new PrintWriter(new BufferedWriter(new FileWriter(file)))){
+                    merge(openRuns(group), runWriter, false);
+                }
+
+                for (File merged : group){
+                    if (!merged.delete()) log.log(Level.WARNING, "Could not delete " + merged);
+                }
+            }
+
+            runs = mergedRuns;
+        }
+
+        //in memory variants and remaining spilled runs
+        ArrayList<Run> sources = openRuns(runs);
+        sources.add(new Run(getSortedRecords().iterator()));
+
+        merge(sources, printWriter, true);
+    }
+
+    //delete spilled runs
+    public void close(){
+        for (File file : runs){
+            if (!file.delete()) log.log(Level.WARNING, "Could not delete " + file);
+        }
+        runs.clear();
+        variantNodes.clear();
+    }
+
+    private void merge(ArrayList<Run> sources, PrintWriter printWriter, boolean vcf) throws IOException {
+        PriorityQueue<Run> queue = new PriorityQueue<>(Math.max(1, sources.size()), new Comparator<Run>() {
+            @Override
+            public int compare(Run run1, Run run2) {
+                return recordComparator.compare(run1.head, run2.head);
+            }
+        });
+        Record last = null;
+
+        try {
+
+            for (Run run : sources){
+                if (run.advance()){
+                    queue.add(run);
+                } else {
+                    run.close();
+                }
+            }
+            sources.clear();
+
+            while (!queue.isEmpty()){
+                Run run = queue.poll();
+
+                if (last == null || recordComparator.compare(last, run.head) != 0){
+                    if (vcf){
+                        printWriter.println(
+                                run.head.contig + "\t" +
+                                        run.head.pos + "\t" +
+                                        "." + "\t" +
+                                        run.head.ref + "\t" +
+                                        run.head.alt + "\t" +
+                                        "." + "\t" +
+                                        "." + "\t" +
+                                        "."
+                        );
+                    } else {
+                        printWriter.println(run.head.contig + "\t" + run.head.pos + "\t" + run.head.ref + "\t" + run.head.alt);
+                    }
+                    last = run.head;
+                }
+
+                if (run.advance()){
+                    queue.add(run);
+                } else {
+                    run.close();
+                }
+            }
+
+            if (printWriter.checkError()){
+                throw new IOException("Could not write novel variants");
+            }
+
+        } finally {
+            for (Run run : sources){
+                run.close();
+            }
+            for (Run run : queue){
+                run.close();
+            }
+        }
+
+    }
+
+    private static ArrayList<Run> openRuns(List<File> files) throws IOException {
+        ArrayList<Run> opened = new ArrayList<>();
+
+        try {
+            for (File file : files){
+                opened.add(new Run(new BufferedReader(new FileReader(file))));
+            }
+        } catch (IOException e){
+            for (Run run : opened){
+                run.close();
+            }
+            throw e;
+        }
+
+        return opened;
+    }
+
+    private static File createRunFile() throws IOException {
+        File file = File.createTempFile("novelVariants", ".tsv");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private void spill() throws IOException {
+        File file = createRunFile();
+
+        log.log(Level.INFO, "Spilling " + variantNodes.size() + " novel variants to " + file);
+
+        try (PrintWriter printWriter = new PrintWriter(new BufferedWriter(new FileWriter(file)))){
+            for (Record record : getSortedRecords()){
+                printWriter.println(record.contig + "\t" + record.pos + "\t" + record.ref + "\t" + record.alt);
+            }
+        }
+
+        runs.add(file);
+        variantNodes.clear();
+    }
+
+    private ArrayList<Record> getSortedRecords(){
+        ArrayList<Record> records = new ArrayList<>(variantNodes.size());
+
+        for (GenomeVariant genomeVariant : variantNodes.keySet()){
+            records.add(new Record(genomeVariant.getContig(), genomeVariant.getPos(), genomeVariant.getRef(), genomeVariant.getAlt()));
+        }
+
+        Collections.sort(records, recordComparator);
+
+        return records;
+    }
+
+    private static class Record {
+        private final String contig, ref, alt;
+        private final int pos;
+
+        private Record(String contig, int pos, String ref, String alt){
+            this.contig = contig;
+            this.pos = pos;
+            this.ref = ref;
+            this.alt = alt;
+        }
+    }
+
+    private static class Run {
+        private Iterator<Record> iterator;
+        private BufferedReader bufferedReader;
+        private Record head;
+
+        private Run(Iterator<Record> iterator){
+            this.iterator = iterator;
+        }
+
+        private Run(BufferedReader bufferedReader){
+            this.bufferedReader = bufferedReader;
+        }
+
+        private boolean advance() throws IOException {
+            if (iterator != null){
+                head = iterator.hasNext() ? iterator.next() : null;
+            } else {
+                String line = bufferedReader.readLine();
+
+                if (line == null){
+                    head = null;
+                } else {
+                    String[] fields = line.split("\t");
+                    head = new Record(fields[0], Integer.parseInt(fields[1]), fields[2], fields[3]);
+                }
+            }
+
+            return head != null;
+        }
+
+        private void close() throws IOException {
+            if (bufferedReader != null) bufferedReader.close();
+        }
+    }
+
+}
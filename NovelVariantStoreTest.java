@@ -0,0 +1,93 @@
+package nhs.genetics.cardiff;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for spilling and merging novel variants
+ *
+ * @author  agent
+ * @version 1.0
+ * @since   2026-10-19
+ */
+public class NovelVariantStoreTest {
+
+    @Test
+    public void writesInMemoryVariantsSortedByDictionary() throws Exception {
+        NovelVariantStore novelVariantStore = new NovelVariantStore(Integer.MAX_VALUE, new VariantExporter.ContigComparator(Arrays.asList("2", "1")));
+
+        novelVariantStore.put(new GenomeVariant("1", 5, "A", "C"), null);
+        novelVariantStore.put(new GenomeVariant("2", 9, "G", "T"), null);
+        novelVariantStore.put(new GenomeVariant("1", 5, "A", "G"), null);
+
+        assertEquals(Arrays.asList("2:9G>T", "1:5A>C", "1:5A>G"), write(novelVariantStore));
+    }
+
+    @Test
+    public void sortsContigsMissingFromDictionaryNumerically() throws Exception {
+        NovelVariantStore novelVariantStore = new NovelVariantStore(2, new VariantExporter.ContigComparator());
+
+        novelVariantStore.put(new GenomeVariant("10", 1, "A", "C"), null);
+        novelVariantStore.put(new GenomeVariant("X", 1, "A", "C"), null);
+        novelVariantStore.put(new GenomeVariant("2", 1, "A", "C"), null);
+        novelVariantStore.put(new GenomeVariant("MT", 1, "A", "C"), null);
+        novelVariantStore.put(new GenomeVariant("1", 1, "A", "C"), null);
+
+        assertEquals(Arrays.asList("1:1A>C", "2:1A>C", "10:1A>C", "X:1A>C", "MT:1A>C"), write(novelVariantStore));
+    }
+
+    @Test
+    public void mergesSpilledRunsInPassesWithoutDuplicates() throws Exception {
+        ArrayList<String> contigs = new ArrayList<>(Arrays.asList("1", "2", "10", "X"));
+        NovelVariantStore novelVariantStore = new NovelVariantStore(3, new VariantExporter.ContigComparator(contigs));
+        ArrayList<String> expected = new ArrayList<>();
+        ArrayList<GenomeVariant> genomeVariants = new ArrayList<>();
+
+        for (String contig : contigs){
+            for (int pos = 1; pos <= 100; ++pos){
+                genomeVariants.add(new GenomeVariant(contig, pos, "A", "T"));
+                expected.add(contig + ":" + pos + "A>T");
+            }
+        }
+
+        //several hundred spilled runs, each variant added twice in different runs
+        Collections.shuffle(genomeVariants, new Random(1));
+        for (GenomeVariant genomeVariant : genomeVariants){
+            novelVariantStore.put(genomeVariant, null);
+        }
+        Collections.shuffle(genomeVariants, new Random(2));
+        for (GenomeVariant genomeVariant : genomeVariants){
+            novelVariantStore.put(genomeVariant, null);
+        }
+
+        assertEquals(expected, write(novelVariantStore));
+    }
+
+    private static ArrayList<String> write(NovelVariantStore novelVariantStore) throws Exception {
+        StringWriter stringWriter = new StringWriter();
+        ArrayList<String> variants = new ArrayList<>();
+
+        try (PrintWriter printWriter = new PrintWriter(stringWriter)){
+            novelVariantStore.write(printWriter);
+        } finally {
+            novelVariantStore.close();
+        }
+
+        for (String line : stringWriter.toString().split("\n")){
+            if (line.isEmpty()) continue;
+            String[] fields = line.split("\t");
+            variants.add(fields[0] + ":" + fields[1] + fields[3] + ">" + fields[4]);
+        }
+
+        return variants;
+    }
+
+}
@@ -0,0 +1,157 @@
+package nhs.genetics.cardiff;
+
+import org.neo4j.graphdb.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.InvalidPropertiesFormatException;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A class for encoding repeated property values as small integer codes. Each term is stored once as a
+ * DictionaryEntry node (field, term, code) which serves as the lookup table for queries. New entries are
+ * committed on a dedicated thread, outside the caller's transaction, before their code is handed out. Codes are
+ * decoded back to terms with {@link #decode(String, int)}.
+ *
+ * @author  agent
+ * @version 1.0
+ * @since   2026-10-19
+ */
+public class PropertyDictionary {
+    private static final Logger log = Logger.getLogger(PropertyDictionary.class.getName());
+
+    private static Label dictionaryEntryLabel = Label.label("DictionaryEntry");
+
+    private final GraphDatabaseService graphDb;
+    private ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<>(); //field and term to committed code
+    private ConcurrentHashMap<String, String> terms = new ConcurrentHashMap<>(); //field and code to term
+    private HashMap<String, Integer> nextCodes = new HashMap<>(); //next free code per field, used on the writer thread
+    private final ExecutorService entryWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "property-dictionary");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public PropertyDictionary(GraphDatabaseService graphDb){
+        this.graphDb = graphDb;
+    }
+
+    //read existing lookup table
+    public void load(){
+        try (Transaction tx = graphDb.beginTx()) {
+            ResourceIterator<Node> nodes = graphDb.findNodes(dictionaryEntryLabel);
+
+            while (nodes.hasNext()){
+                Node node = nodes.next();
+                String field = (String) node.getProperty("field");
+                int code = (Integer) node.getProperty("code");
+
+                codes.put(getKey(field, (String) node.getProperty("term")), code);
+                terms.put(getKey(field, Integer.toString(code)), (String) node.getProperty("term"));
+                if (!nextCodes.containsKey(field) || nextCodes.get(field) <= code) nextCodes.put(field, code + 1);
+            }
+
+            nodes.close();
+            tx.success();
+        }
+
+        log.log(Level.INFO, "Loaded " + codes.size() + " dictionary entries");
+    }
+
+    public int encode(String field, String term) throws IOException {
+        Integer code = codes.get(getKey(field, term));
+        return code != null ? code : addEntry(field, term);
+    }
+
+    public int[] encode(String field, Collection<String> terms) throws IOException {
+        int[] encoded = new int[terms.size()];
+        int n = 0;
+
+        for (String term : terms){
+            encoded[n++] = encode(field, term);
+        }
+
+        return encoded;
+    }
+
+    public String decode(String field, int code) throws InvalidPropertiesFormatException {
+        String term = terms.get(getKey(field, Integer.toString(code)));
+
+        if (term == null){
+            throw new InvalidPropertiesFormatException("No dictionary entry for " + field + " code " + code);
+        }
+
+        return term;
+    }
+
+    public String[] decode(String field, int[] codes) throws InvalidPropertiesFormatException {
+        String[] decoded = new String[codes.length];
+
+        for (int n = 0; n < codes.length; ++n){
+            decoded[n] = decode(field, codes[n]);
+        }
+
+        return decoded;
+    }
+
+    public void close(){
+        entryWriter.shutdownNow();
+    }
+
+    //a batch rolled back after using a code must not leave it without an entry
+    private int addEntry(final String field, final String term) throws IOException {
+        Future<Integer> future = entryWriter.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                String key = getKey(field, term);
+
+                //added by an earlier request
+                if (codes.containsKey(key)){
+                    return codes.get(key);
+                }
+
+                int code = nextCodes.containsKey(field) ? nextCodes.get(field) : 0;
+
+                //top-level transaction on this thread, committed independently of the caller
+                try (Transaction tx = graphDb.beginTx()) {
+                    Node node = graphDb.createNode(dictionaryEntryLabel);
+                    node.setProperty("field", field);
+                    node.setProperty("term", term);
+                    node.setProperty("code", code);
+                    tx.success();
+                }
+
+                nextCodes.put(field, code + 1);
+                terms.put(getKey(field, Integer.toString(code)), term);
+                codes.put(key, code);
+
+                return code;
+            }
+        });
+
+        try {
+            return future.get();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted adding dictionary entry");
+        } catch (ExecutionException e){
+            throw new IOException("Could not add dictionary entry for " + field + ": " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private static String getKey(String field, String term){
+        return field + "\t" + term;
+    }
+
+    public static Label getDictionaryEntryLabel() {
+        return dictionaryEntryLabel;
+    }
+
+}
@@ -0,0 +1,79 @@
+package nhs.genetics.cardiff;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.InvalidPropertiesFormatException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Tests for encoding and decoding dictionary codes
+ *
+ * @author  agent
+ * @version 1.0
+ * @since   2026-10-19
+ */
+public class PropertyDictionaryTest {
+
+    private File directory;
+    private GraphDatabaseService graphDb;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("dictionary").toFile();
+        graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(directory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        graphDb.shutdown();
+        org.neo4j.io.fs.FileUtils.deleteRecursively(directory);
+    }
+
+    @Test
+    public void decodesCodesAfterReload() throws Exception {
+        PropertyDictionary propertyDictionary = new PropertyDictionary(graphDb);
+        propertyDictionary.load();
+
+        int deleterious = propertyDictionary.encode("sift", "deleterious");
+        int tolerated = propertyDictionary.encode("sift", "tolerated");
+        int[] domains = propertyDictionary.encode("pfamDomain", Arrays.asList("PF00001", "PF00002", "PF00001"));
+
+        assertNotEquals(deleterious, tolerated);
+        assertEquals(deleterious, propertyDictionary.encode("sift", "deleterious"));
+        assertEquals(domains[0], domains[2]);
+        assertEquals("tolerated", propertyDictionary.decode("sift", tolerated));
+        propertyDictionary.close();
+
+        //codes are read back from the entries in the graph
+        PropertyDictionary reloaded = new PropertyDictionary(graphDb);
+        reloaded.load();
+
+        assertEquals("deleterious", reloaded.decode("sift", deleterious));
+        assertArrayEquals(new String[]{"PF00001", "PF00002", "PF00001"}, reloaded.decode("pfamDomain", domains));
+        assertEquals(tolerated + 1, reloaded.encode("sift", "damaging"));
+        reloaded.close();
+    }
+
+    @Test(expected = InvalidPropertiesFormatException.class)
+    public void rejectsUnknownCode() throws Exception {
+        PropertyDictionary propertyDictionary = new PropertyDictionary(graphDb);
+        propertyDictionary.load();
+
+        try {
+            propertyDictionary.decode("sift", propertyDictionary.encode("polyphen", "benign"));
+        } finally {
+            propertyDictionary.close();
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+package nhs.genetics.cardiff;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A class for staging normalised genotypes before they are applied to the graph. A segment is an append-only,
+ * memory-mapped file of length-prefixed UTF-8 records which only appears under its final name once complete.
+ *
+ * @author  agent
+ * @version 1.0
+ * @since   2026-10-19
+ */
+public class StagingLog {
+
+    public static final String segmentExtension = ".segment";
+
+    private static final int defaultMapSize = 64 * 1024 * 1024;
+    private static final Charset charset = Charset.forName("UTF-8");
+
+    //completed segments in the order they were staged
+    public static File[] getSegments(File directory){
+        File[] segments = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(segmentExtension);
+            }
+        });
+
+        if (segments == null){
+            return new File[0];
+        }
+
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    public static class Writer implements Closeable {
+        private final File file, tempFile;
+        private final FileChannel fileChannel;
+        private final int mapSize;
+        private MappedByteBuffer buffer;
+        private long bufferStart = 0;
+
+        public Writer(File file) throws IOException {
+            this(file, defaultMapSize);
+        }
+
+        //bytes mapped at a time
+        Writer(File file, int mapSize) throws IOException {
+            this.file = file;
+            this.mapSize = mapSize;
+            this.tempFile = new File(file.getPath() + ".tmp");
+            this.fileChannel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, mapSize);
+        }
+
+        public void append(String record) throws IOException {
+            byte[] bytes = record.getBytes(charset);
+
+            //extend mapping
+            if (buffer.remaining() < bytes.length + 4){
+                bufferStart += buffer.position();
+                buffer.force();
+                buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, bufferStart, Math.max(mapSize, bytes.length + 4));
+            }
+
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+
+        //flush, trim unused mapping and publish the segment
+        @Override
+        public void close() throws IOException {
+            buffer.force();
+            fileChannel.truncate(bufferStart + buffer.position());
+            fileChannel.force(true);
+            fileChannel.close();
+
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    public static class Reader implements Closeable {
+        private final FileChannel fileChannel;
+        private final long size;
+        private final int mapSize;
+        private MappedByteBuffer buffer;
+        private long bufferStart = 0;
+
+        public Reader(File file) throws IOException {
+            this(file, defaultMapSize);
+        }
+
+        //bytes mapped at a time
+        Reader(File file, int mapSize) throws IOException {
+            this.mapSize = mapSize;
+            this.fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.size = fileChannel.size();
+            seek(0);
+        }
+
+        /**
+         * @return offset of the next record
+         */
+        public long getOffset(){
+            return bufferStart + buffer.position();
+        }
+
+        public void seek(long offset) throws IOException {
+            bufferStart = offset;
+            buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(mapSize, size - offset));
+        }
+
+        /**
+         * @return the next record or null at the end of the segment
+         */
+        public String next() throws IOException {
+            if (getOffset() + 4 > size){
+                return null;
+            }
+
+            if (buffer.remaining() < 4){
+                seek(getOffset());
+            }
+
+            int length = buffer.getInt(buffer.position());
+
+            //remap for records crossing the mapped window
+            if (buffer.remaining() < length + 4){
+                long offset = getOffset();
+                bufferStart = offset;
+                buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(Math.max(mapSize, length + 4), size - offset));
+            }
+
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+
+            return new String(bytes, charset);
+        }
+
+        @Override
+        public void close() throws IOException {
+            fileChannel.close();
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+package nhs.genetics.cardiff;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for writing and reading back staging segments
+ *
+ * @author  agent
+ * @version 1.0
+ * @since   2026-10-19
+ */
+public class StagingLogTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("staging").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        org.neo4j.io.fs.FileUtils.deleteRecursively(directory);
+    }
+
+    @Test
+    public void publishesSegmentOnClose() throws Exception {
+        File segment = new File(directory, "genotypes" + StagingLog.segmentExtension);
+
+        StagingLog.Writer writer = new StagingLog.Writer(segment);
+        writer.append("C\t1");
+        assertEquals(0, StagingLog.getSegments(directory).length);
+        writer.close();
+
+        assertEquals(1, StagingLog.getSegments(directory).length);
+        assertEquals(4 + "C\t1".length(), segment.length());
+
+        try (StagingLog.Reader reader = new StagingLog.Reader(segment)){
+            assertEquals("C\t1", reader.next());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void readsRecordsCrossingMappedWindows() throws Exception {
+        File segment = new File(directory, "genotypes" + StagingLog.segmentExtension);
+        ArrayList<String> records = new ArrayList<>();
+        Random random = new Random(1);
+
+        //empty, multi-byte and records longer than the window
+        records.add("");
+        records.add("S\tsampleé");
+        for (int n = 0; n < 500; ++n){
+            StringBuilder record = new StringBuilder("G\t" + n + "\t");
+            int length = random.nextInt(n % 50 == 0 ? 200 : 20);
+            for (int i = 0; i < length; ++i){
+                record.append((char) ('A' + random.nextInt(26)));
+            }
+            records.add(record.toString());
+        }
+
+        try (StagingLog.Writer writer = new StagingLog.Writer(segment, 64)){
+            for (String record : records){
+                writer.append(record);
+            }
+        }
+
+        ArrayList<Long> offsets = new ArrayList<>();
+        try (StagingLog.Reader reader = new StagingLog.Reader(segment, 64)){
+            for (String record : records){
+                offsets.add(reader.getOffset());
+                assertEquals(record, reader.next());
+            }
+            assertNull(reader.next());
+        }
+
+        //resume from a checkpointed offset
+        try (StagingLog.Reader reader = new StagingLog.Reader(segment, 64)){
+            reader.seek(offsets.get(301));
+            for (int n = 301; n < records.size(); ++n){
+                assertEquals(records.get(n), reader.next());
+            }
+            assertNull(reader.next());
+        }
+    }
+
+}
@@ -1,5 +1,10 @@
 package nhs.genetics.cardiff;
 
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.AsyncBufferedIterator;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.variant.variantcontext.Allele;
 import htsjdk.variant.variantcontext.Genotype;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.vcf.VCFFileReader;
@@ -9,7 +14,17 @@ import org.neo4j.graphdb.factory.GraphDatabaseFactory;
 import org.neo4j.graphdb.factory.GraphDatabaseSettings;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,8 +41,39 @@ public class VariantDatabase {
     private File dbPath;
     private GraphDatabaseService graphDb;
     private VCFFileReader vcfFileReader;
-    private HashMap<GenomeVariant, Node> addedVariantNodes = new HashMap<>(); //new variants added during this session
+    private int novelVariantMemoryBudget = Integer.MAX_VALUE;
+    private int neighbourQueryCacheSize = 0; //cached batched neighbour lookups, none when zero
+    private ArrayList<String> contigOrder = new ArrayList<>(); //sequence dictionary order for sorting novel variants
+    private NovelVariantStore addedVariantNodes; //new variants added during this session
     private HashMap<String, Node> runInfoNodes = new HashMap<>(); //analyses added during this session
+    private HashMap<Long, String> runInfoAssays = new HashMap<>(); //assay for analyses added during this session
+    private HashMap<Long, Integer> runInfoOrdinals = new HashMap<>(); //carrier ordinal for analyses added during this session
+    private CarrierIndex carrierIndex;
+    private File annotationSourceConfig;
+    private boolean compactStorage = false;
+    private PropertyDictionary propertyDictionary; //codes for repeated annotation values in compact storage
+    private PrintWriter novelVariantLog; //novel variants created while applying staged genotypes
+    private ImportProgress importProgress;
+
+    //variant positions are indexed in fixed width bins for range queries
+    private static final int genomicBinSize = 65536;
+
+    //VCF read ahead
+    private static final int readAheadBufferSize = 1000;
+    private static final int readAheadBuffers = 4;
+
+    //compact storage, SNV identity packed as contig, position and alleles
+    private static final String compactStorageMarker = "compactStorage";
+    private static final String variantPositionsMarker = "variantPositions"; //every variant has contig, pos and an indexed bin
+    private static final List<String> packedContigs = Arrays.asList("1", "2", "3", "4", "5", "6", "7", "8", "9", "10",
+            "11", "12", "13", "14", "15", "16", "17", "18", "19", "20", "21", "22", "X", "Y", "MT");
+    private static final String packedBases = "ACGT";
+    private static final List<String> predictionKeys = Arrays.asList("sift", "polyphen"); //category code and score
+    private static final List<String> dictionaryKeys = Arrays.asList("codons", "pfamDomain", "hmmPanther", "prosite", "superfamilyDomains");
+
+    //batch processing
+    private static final int batchSize = 1000;
+    private static final int maxBatchAttempts = 5;
 
     //DB model
     private static Label sampleLabel = Label.label("Sample");
@@ -64,6 +110,32 @@ public class VariantDatabase {
     private static RelationshipType rejectedByRelationship = RelationshipType.withName("REJECTED_BY");
     private static RelationshipType hasAssociatedSymbol = RelationshipType.withName("HAS_ASSOCIATED_SYMBOL");
 
+    //relationship types resolved once per SO term or biotype
+    private static final String[] consequenceTerms = {
+            "transcript_ablation", "splice_acceptor_variant", "splice_donor_variant", "stop_gained", "frameshift_variant",
+            "stop_lost", "start_lost", "transcript_amplification", "inframe_insertion", "inframe_deletion",
+            "missense_variant", "protein_altering_variant", "splice_region_variant", "incomplete_terminal_codon_variant",
+            "stop_retained_variant", "synonymous_variant", "coding_sequence_variant", "mature_miRNA_variant",
+            "5_prime_UTR_variant", "3_prime_UTR_variant", "non_coding_transcript_exon_variant", "intron_variant",
+            "NMD_transcript_variant", "non_coding_transcript_variant", "upstream_gene_variant", "downstream_gene_variant",
+            "TFBS_ablation", "TFBS_amplification", "TF_binding_site_variant", "regulatory_region_ablation",
+            "regulatory_region_amplification", "feature_elongation", "regulatory_region_variant", "feature_truncation",
+            "intergenic_variant"
+    };
+    private static final ConcurrentHashMap<String, RelationshipType> consequenceRelationships = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, RelationshipType> biotypeRelationships = new ConcurrentHashMap<>();
+
+    //chromosome label resolved once per contig
+    private static final Label unclassifiedContig = Label.label("UnclassifiedContig"); //cache marker, never written
+    private static final ConcurrentHashMap<String, Label> contigLabels = new ConcurrentHashMap<>();
+
+    static {
+        for (String consequence : consequenceTerms){
+            consequenceRelationships.put(consequence, RelationshipType.withName("HAS_" + consequence.toUpperCase() + "_CONSEQUENCE"));
+        }
+        biotypeRelationships.put("protein_coding", hasProteinCodingBiotypeRelationship);
+    }
+
     //todo add mutation taster
     //todo add splicing tools
 
@@ -79,9 +151,62 @@ public class VariantDatabase {
     public VariantDatabase(VCFFileReader vcfFileReader, File dbPath){
         this.vcfFileReader = vcfFileReader;
         this.dbPath = dbPath;
+
+        if (vcfFileReader != null && vcfFileReader.getFileHeader().getSequenceDictionary() != null){
+            for (SAMSequenceRecord sequenceRecord : vcfFileReader.getFileHeader().getSequenceDictionary().getSequences()){
+                contigOrder.add(sequenceRecord.getSequenceName());
+            }
+        }
+
+        this.addedVariantNodes = newNovelVariantStore();
+    }
+
+    //limit the number of novel variants held in memory before spilling to disk
+    public void setNovelVariantMemoryBudget(int memoryBudget){
+        this.novelVariantMemoryBudget = memoryBudget;
+        this.addedVariantNodes.close();
+        this.addedVariantNodes = newNovelVariantStore();
+    }
+
+    private NovelVariantStore newNovelVariantStore(){
+        return new NovelVariantStore(novelVariantMemoryBudget, new VariantExporter.ContigComparator(contigOrder));
+    }
+
+    //resource VCFs read directly during annotation import
+    public void setAnnotationSourceConfig(File annotationSourceConfig){
+        this.annotationSourceConfig = annotationSourceConfig;
     }
 
-    public void startDatabase() {
+    //report position, rate and ETA while reading the VCF
+    public void setImportProgress(ImportProgress importProgress){
+        this.importProgress = importProgress;
+    }
+
+    //cache batched neighbour lookups between commits, set before starting the database
+    public void setNeighbourQueryCacheSize(int neighbourQueryCacheSize){
+        this.neighbourQueryCacheSize = neighbourQueryCacheSize;
+    }
+
+    //compact storage must be chosen when the database is created
+    public void setCompactStorage(boolean compactStorage){
+        this.compactStorage = compactStorage;
+    }
+
+    //new import session for another VCF sharing this open database
+    public VariantDatabase newSession(VCFFileReader vcfFileReader){
+        VariantDatabase session = new VariantDatabase(vcfFileReader, dbPath);
+
+        session.graphDb = graphDb;
+        session.carrierIndex = carrierIndex;
+        session.compactStorage = compactStorage;
+        session.propertyDictionary = propertyDictionary;
+        session.setNovelVariantMemoryBudget(novelVariantMemoryBudget);
+        session.setAnnotationSourceConfig(annotationSourceConfig);
+
+        return session;
+    }
+
+    public void startDatabase() throws IOException {
         log.log(Level.INFO, "Starting database ...");
 
         graphDb = new GraphDatabaseFactory()
@@ -90,10 +215,26 @@ public class VariantDatabase {
                 .newGraphDatabase();
 
         Neo4j.registerShutdownHook(graphDb);
+        if (neighbourQueryCacheSize > 0) Neo4j.enableNeighbourQueryCache(graphDb, neighbourQueryCacheSize);
+
+        carrierIndex = new CarrierIndex(graphDb, new File(dbPath, "carrierIndex"));
+
+        //storage mode is fixed for the life of the database
+        File marker = new File(dbPath, compactStorageMarker);
+        if (compactStorage && !marker.isFile() && !marker.createNewFile()){
+            throw new IOException("Could not create " + marker);
+        }
+        compactStorage = marker.isFile();
+
+        if (compactStorage){
+            log.log(Level.INFO, "Using compact storage");
+            propertyDictionary = new PropertyDictionary(graphDb);
+            propertyDictionary.load();
+        }
     }
 
     //new database
-    public void createIndexes() {
+    public void createIndexes() throws IOException {
         log.log(Level.INFO, "Adding constraints ...");
 
         //todo optimise
@@ -101,127 +242,205 @@ public class VariantDatabase {
         Neo4j.createIndex(graphDb, runInfoLabel, "worklistId");
         Neo4j.createIndex(graphDb, runInfoLabel, "seqId");
         Neo4j.createConstraint(graphDb, runInfoLabel, "analysisId");
+        Neo4j.createIndex(graphDb, runInfoLabel, "ordinal");
         Neo4j.createConstraint(graphDb, variantLabel, "variantId");
+        if (compactStorage) Neo4j.createConstraint(graphDb, variantLabel, "variantKey");
+        Neo4j.createIndex(graphDb, variantLabel, "bin");
         Neo4j.createConstraint(graphDb, featureLabel, "featureId");
         Neo4j.createConstraint(graphDb, symbolLabel, "symbolId");
         Neo4j.createConstraint(graphDb, virtualPanelLabel, "virtualPanelId");
         Neo4j.createConstraint(graphDb, userLabel, "userId");
         Neo4j.createConstraint(graphDb, disorderLabel, "disorder");
 
+        //variants are created with positions and carriers from the start
+        writeVariantPositionsMarker();
+        carrierIndex.setComplete();
+    }
+
+    private void writeVariantPositionsMarker() throws IOException {
+        File marker = new File(dbPath, variantPositionsMarker);
+        if (!marker.isFile() && !marker.createNewFile()){
+            throw new IOException("Could not create " + marker);
+        }
     }
 
     //import genotype VCF
-    public void addSampleAndRunInfoNodes() throws InvalidPropertiesFormatException {
+    public void addSampleAndRunInfoNodes() throws IOException {
         log.log(Level.INFO, "Adding sample and run info nodes ...");
 
+        for (String sampleHeader : getSampleHeaders()){
+            addSampleAndRunInfoNode(sampleHeader, false);
+        }
+
+    }
+
+    private ArrayList<String> getSampleHeaders(){
+        ArrayList<String> sampleHeaders = new ArrayList<>();
+
+        for (VCFHeaderLine line : vcfFileReader.getFileHeader().getMetaDataInInputOrder()){
+            if (line.getKey().equals("SAMPLE")){
+                sampleHeaders.add(line.getValue());
+            }
+        }
+
+        return sampleHeaders;
+    }
+
+    //add sample and analysis, resuming analyses partially applied from staging
+    private void addSampleAndRunInfoNode(String sampleHeader, boolean resume) throws IOException {
         HashMap<String, Object> properties = new HashMap<>();
         HashMap<String, String> keyValuePairs = new HashMap<>();
-        Set<VCFHeaderLine> metaLines = vcfFileReader.getFileHeader().getMetaDataInInputOrder();
 
-        for (VCFHeaderLine line : metaLines){
-            if (line.getKey().equals("SAMPLE")){
+        //split out key value pairs
+        for (String keyValuePair : sampleHeader.split(",")){
+            String[] keyValue = keyValuePair.split("=");
+            keyValuePairs.put(keyValue[0].replace("<", ""), keyValue[1].replace(">", ""));
+        }
 
-                //split out key value pairs
-                for (String keyValuePair : line.getValue().split(",")){
-                    String[] keyValue = keyValuePair.split("=");
-                    keyValuePairs.put(keyValue[0].replace("<", ""), keyValue[1].replace(">", ""));
-                }
+        String analysisId = keyValuePairs.get("WorklistId") + "_" + keyValuePairs.get("ID") + "_" + keyValuePairs.get("SeqId");
+
+        if (resume){
+            ArrayList<Node> existingRunInfoNodes = Neo4j.getNodes(graphDb, runInfoLabel, "analysisId", analysisId);
 
-                //add sample
+            if (existingRunInfoNodes.size() == 1){
+
+                //interrupted before the analysis was linked to its sample
                 Node sampleNode = Neo4j.matchOrCreateUniqueNode(graphDb, sampleLabel, "sampleId", keyValuePairs.get("ID"));
+                Neo4j.createRelationship(graphDb, sampleNode, existingRunInfoNodes.get(0), hasAnalysisRelationship, null);
 
-                properties.put("tissue", keyValuePairs.get("Tissue"));
-                Neo4j.addNodeProperties(graphDb, sampleNode, properties);
-                properties.clear();
+                resumeRunInfoNode(keyValuePairs.get("ID"), keyValuePairs.get("Assay"), existingRunInfoNodes.get(0));
+                return;
+            }
+        }
 
-                //add run info
-                properties.put("worklistId", keyValuePairs.get("WorklistId"));
-                properties.put("seqId", keyValuePairs.get("SeqId"));
-                properties.put("analysisId", keyValuePairs.get("WorklistId") + "_" + keyValuePairs.get("ID") + "_" + keyValuePairs.get("SeqId"));
-                properties.put("assay", keyValuePairs.get("Assay"));
-                properties.put("pipelineName", keyValuePairs.get("PipelineName"));
-                properties.put("pipelineVersion", Integer.parseInt(keyValuePairs.get("PipelineVersion")));
-                properties.put("remoteBamFilePath", keyValuePairs.get("RemoteBamFilePath"));
-                properties.put("remoteVcfFilePath", keyValuePairs.get("RemoteVcfFilePath"));
-
-                //optional qc metrics
-                if (keyValuePairs.containsKey("GenotypicGender")) properties.put("genotypicGender", keyValuePairs.get("GenotypicGender"));
-                if (keyValuePairs.containsKey("EstimatedContamination")) properties.put("estimatedContamination", keyValuePairs.get("EstimatedContamination"));
-                if (keyValuePairs.containsKey("PercentageGt30")) properties.put("percentageGt30", keyValuePairs.get("percentageGt30"));
-                if (keyValuePairs.containsKey("DuplicationRate")) properties.put("duplicationRate", keyValuePairs.get("DuplicationRate"));
-
-                Node runInfoNode = Neo4j.addNode(graphDb, runInfoLabel, properties);
-                properties.clear();
+        //add sample
+        Node sampleNode = Neo4j.matchOrCreateUniqueNode(graphDb, sampleLabel, "sampleId", keyValuePairs.get("ID"));
+
+        properties.put("tissue", keyValuePairs.get("Tissue"));
+        Neo4j.addNodeProperties(graphDb, sampleNode, properties);
+        properties.clear();
+
+        //add run info
+        properties.put("worklistId", keyValuePairs.get("WorklistId"));
+        properties.put("seqId", keyValuePairs.get("SeqId"));
+        properties.put("analysisId", analysisId);
+        properties.put("assay", keyValuePairs.get("Assay"));
+        properties.put("pipelineName", keyValuePairs.get("PipelineName"));
+        properties.put("pipelineVersion", Integer.parseInt(keyValuePairs.get("PipelineVersion")));
+        properties.put("remoteBamFilePath", keyValuePairs.get("RemoteBamFilePath"));
+        properties.put("remoteVcfFilePath", keyValuePairs.get("RemoteVcfFilePath"));
+
+        //optional qc metrics
+        if (keyValuePairs.containsKey("GenotypicGender")) properties.put("genotypicGender", keyValuePairs.get("GenotypicGender"));
+        if (keyValuePairs.containsKey("EstimatedContamination")) properties.put("estimatedContamination", keyValuePairs.get("EstimatedContamination"));
+        if (keyValuePairs.containsKey("PercentageGt30")) properties.put("percentageGt30", keyValuePairs.get("percentageGt30"));
+        if (keyValuePairs.containsKey("DuplicationRate")) properties.put("duplicationRate", keyValuePairs.get("DuplicationRate"));
+
+        //ordinal is assigned as the node is committed
+        Node runInfoNode = carrierIndex.addRunInfoNode(properties);
+        int runOrdinal = (Integer) properties.get("ordinal");
+        properties.clear();
+
+        //link sample and runInfo
+        Neo4j.createRelationship(graphDb, sampleNode, runInfoNode, hasAnalysisRelationship, null);
+        runInfoNodes.put(keyValuePairs.get("ID"), runInfoNode);
+        runInfoAssays.put(runInfoNode.getId(), keyValuePairs.get("Assay"));
+        runInfoOrdinals.put(runInfoNode.getId(), runOrdinal);
+    }
 
-                //link sample and runInfo
-                Neo4j.createRelationship(graphDb, sampleNode, runInfoNode, hasAnalysisRelationship, null);
-                runInfoNodes.put(keyValuePairs.get("ID"), runInfoNode);
+    //carriers already applied were committed with their genotypes
+    private void resumeRunInfoNode(String sampleId, String assay, Node runInfoNode){
+        int appliedGenotypes;
 
-                keyValuePairs.clear();
+        try (Transaction tx = graphDb.beginTx()) {
+            appliedGenotypes = runInfoNode.getDegree(Direction.OUTGOING) - runInfoNode.getDegree(hasAnalysisRelationship, Direction.OUTGOING);
 
-            }
+            runInfoNodes.put(sampleId, runInfoNode);
+            runInfoAssays.put(runInfoNode.getId(), assay);
+            runInfoOrdinals.put(runInfoNode.getId(), (Integer) runInfoNode.getProperty("ordinal"));
+
+            tx.success();
         }
 
+        log.log(Level.INFO, "Resuming analysis " + runInfoNode.getProperty("analysisId", sampleId) + " with " + appliedGenotypes + " genotypes applied");
     }
 
-    public void importVariants() throws InvalidPropertiesFormatException {
+    public void importVariants() throws IOException {
         log.log(Level.INFO, "Importing variants ...");
 
-        GenomeVariant genomeVariant;
-        Iterator<VariantContext> variantContextIterator = vcfFileReader.iterator();
+        classifyContigs();
 
-        //read variant VCF file
-        while (variantContextIterator.hasNext()) {
-            VariantContext variantContext = variantContextIterator.next();
+        readGenotypes(new GenotypeHandler() {
+            @Override
+            public void handle(String sampleId, GenomeVariant genomeVariant, short genotypeQuality, boolean hom) throws IOException {
+                addVariantAndGenotype(genomeVariant, genotypeQuality, runInfoNodes.get(sampleId), hom ? hasHomVariantRelationship : hasHetVariantRelationship);
+            }
+        });
 
-            //skip filtered and non-variant loci
-            if (!variantContext.isFiltered() && variantContext.isVariant()){
-                Iterator<Genotype> genotypeIterator = variantContext.getGenotypes().iterator();
+        writeCarriedVariants();
+    }
 
-                //read genotypes
-                while (genotypeIterator.hasNext()) {
-                    Genotype genotype = genotypeIterator.next();
+    //carried variants of analyses added during this session, once their genotypes are committed
+    private void writeCarriedVariants() throws IOException {
+        for (Node runInfoNode : runInfoNodes.values()){
+            carrierIndex.writeCarriedVariants(runInfoNode.getId());
+        }
+    }
 
-                    //skip no-calls, hom-refs,  mixed genotypes or alleles covered by nearby indels
-                    if (genotype.isNoCall() || genotype.isHomRef() || genotype.isFiltered()){
-                        continue;
-                    }
-                    if (genotype.isMixed()){
-                        log.log(Level.WARNING, genotype.getSampleName() + ": " + variantContext.getContig() + " " + variantContext.getStart() + " " + variantContext.getReference() + variantContext.getAlternateAlleles().toString() + " has mixed genotype ( " + genotype.getGenotypeString() + " ) and could not be added.");
-                        continue;
-                    }
-                    if (genotype.getPloidy() != 2 || genotype.getAlleles().size() != 2) {
-                        throw new InvalidPropertiesFormatException("Allele " + genotype.getAlleles().toString() + " is not diploid");
-                    }
-                    if (genotype.getAlleles().get(0).getBaseString().equals("*") || genotype.getAlleles().get(1).getBaseString().equals("*")) {
-                        continue;
-                    }
+    //read called, normalised genotypes from the VCF
+    private void readGenotypes(GenotypeHandler genotypeHandler) throws IOException {
+        GenomeVariant[] alleleVariants;
+
+        try (CloseableIterator<VariantContext> variantContextIterator = getVariantContextIterator()) {
+
+            //read variant VCF file
+            while (variantContextIterator.hasNext()) {
+                VariantContext variantContext = variantContextIterator.next();
 
-                    //add new variants to the DB
-                    if (genotype.isHom()){
+                //skip filtered and non-variant loci
+                if (!variantContext.isFiltered() && variantContext.isVariant()){
+                    Iterator<Genotype> genotypeIterator = variantContext.getGenotypes().iterator();
 
-                        genomeVariant = new GenomeVariant(variantContext.getContig(), variantContext.getStart(), variantContext.getReference().getBaseString(), genotype.getAlleles().get(1).getBaseString());
-                        genomeVariant.convertToMinimalRepresentation();
+                    //minimal representation of each alternate allele, normalised once per site
+                    alleleVariants = new GenomeVariant[variantContext.getNAlleles()];
 
-                        addVariantAndGenotype(genomeVariant, (short) genotype.getGQ(), runInfoNodes.get(genotype.getSampleName()), hasHomVariantRelationship);
+                    //read genotypes
+                    while (genotypeIterator.hasNext()) {
+                        Genotype genotype = genotypeIterator.next();
 
-                    } else if (genotype.isHet()){
+                        //skip no-calls, hom-refs,  mixed genotypes or alleles covered by nearby indels
+                        if (genotype.isNoCall() || genotype.isHomRef() || genotype.isFiltered()){
+                            continue;
+                        }
+                        if (genotype.isMixed()){
+                            log.log(Level.WARNING, genotype.getSampleName() + ": " + variantContext.getContig() + " " + variantContext.getStart() + " " + variantContext.getReference() + variantContext.getAlternateAlleles().toString() + " has mixed genotype ( " + genotype.getGenotypeString() + " ) and could not be added.");
+                            continue;
+                        }
+                        if (genotype.getPloidy() != 2 || genotype.getAlleles().size() != 2) {
+                            throw new InvalidPropertiesFormatException("Allele " + genotype.getAlleles().toString() + " is not diploid");
+                        }
+                        if (genotype.getAlleles().get(0).getBaseString().equals("*") || genotype.getAlleles().get(1).getBaseString().equals("*")) {
+                            continue;
+                        }
 
-                        genomeVariant = new GenomeVariant(variantContext.getContig(), variantContext.getStart(), variantContext.getReference().getBaseString(), genotype.getAlleles().get(1).getBaseString());
-                        genomeVariant.convertToMinimalRepresentation();
+                        //add new variants to the DB
+                        if (genotype.isHom()){
 
-                        addVariantAndGenotype(genomeVariant, (short) genotype.getGQ(), runInfoNodes.get(genotype.getSampleName()), hasHetVariantRelationship);
+                            genotypeHandler.handle(genotype.getSampleName(), getAlleleVariant(variantContext, alleleVariants, genotype.getAllele(1)), (short) genotype.getGQ(), true);
 
-                        if (genotype.isHetNonRef()){
+                        } else if (genotype.isHet()){
 
-                            genomeVariant = new GenomeVariant(variantContext.getContig(), variantContext.getStart(), variantContext.getReference().getBaseString(), genotype.getAlleles().get(0).getBaseString());
-                            genomeVariant.convertToMinimalRepresentation();
+                            //add each non-reference allele, covers het-non-ref at N-allele sites
+                            for (Allele allele : genotype.getAlleles()){
+                                if (allele.isNonReference()){
+                                    genotypeHandler.handle(genotype.getSampleName(), getAlleleVariant(variantContext, alleleVariants, allele), (short) genotype.getGQ(), false);
+                                }
+                            }
 
-                            addVariantAndGenotype(genomeVariant, (short) genotype.getGQ(), runInfoNodes.get(genotype.getSampleName()), hasHetVariantRelationship);
+                        } else {
+                            throw new InvalidPropertiesFormatException("Inheritance unknown: " + variantContext.toString());
                         }
 
-                    } else {
-                        throw new InvalidPropertiesFormatException("Inheritance unknown: " + variantContext.toString());
                     }
 
                 }
@@ -232,126 +451,840 @@ public class VariantDatabase {
 
     }
 
+    private interface GenotypeHandler {
+        void handle(String sampleId, GenomeVariant genomeVariant, short genotypeQuality, boolean hom) throws IOException;
+    }
+
+    /**
+     * Writes samples and normalised genotypes to a staging segment without opening the database.
+     * @return the completed segment
+     */
+    public File stageVariants(File stagingDirectory) throws IOException {
+        final File segment = new File(stagingDirectory, "genotypes-" + System.currentTimeMillis() + "-" + UUID.randomUUID() + StagingLog.segmentExtension);
+        log.log(Level.INFO, "Staging variants to " + segment + " ...");
+
+        try (final StagingLog.Writer writer = new StagingLog.Writer(segment)){
+
+            //contig order for sorting novel variants when applied
+            for (String contig : contigOrder){
+                writer.append("C\t" + contig);
+            }
+
+            for (String sampleHeader : getSampleHeaders()){
+                writer.append("S\t" + sampleHeader);
+            }
+
+            readGenotypes(new GenotypeHandler() {
+                @Override
+                public void handle(String sampleId, GenomeVariant genomeVariant, short genotypeQuality, boolean hom) throws IOException {
+                    writer.append("G\t" + sampleId + "\t" + genomeVariant.getContig() + "\t" + genomeVariant.getPos() + "\t" + genomeVariant.getRef() + "\t" + genomeVariant.getAlt() + "\t" + (hom ? "1" : "0") + "\t" + genotypeQuality);
+                }
+            });
+
+        }
+
+        return segment;
+    }
+
+    /**
+     * Applies a staging segment in batches, resuming from its checkpoint after a crash. Novel variants are
+     * written to an imported VCF beside the segment, which is deleted once applied.
+     */
+    public void applyStagedVariants(File segment) throws IOException {
+        String segmentName = segment.getPath().substring(0, segment.getPath().length() - StagingLog.segmentExtension.length());
+        File checkpointFile = new File(segmentName + ".checkpoint");
+        File novelVariantFile = new File(segmentName + ".novel");
+        ArrayList<String[]> batch = new ArrayList<>(batchSize);
+        String record;
+        boolean resume = checkpointFile.isFile();
+
+        log.log(Level.INFO, (resume ? "Resuming " : "Applying ") + segment + " ...");
+
+        //checkpoint before any analysis is added, so a crash while adding them resumes rather than re-creating them
+        if (!resume){
+            writeCheckpoint(checkpointFile, 0);
+        }
+
+        try (StagingLog.Reader reader = new StagingLog.Reader(segment)){
+
+            //contigs and samples precede genotypes, analyses from an interrupted attempt are matched by analysisId
+            long offset = reader.getOffset();
+            while ((record = reader.next()) != null && (record.startsWith("C\t") || record.startsWith("S\t"))){
+                if (record.startsWith("C\t")){
+                    contigOrder.add(record.substring(2));
+                } else {
+                    addSampleAndRunInfoNode(record.substring(2), resume);
+                }
+                offset = reader.getOffset();
+            }
+            addedVariantNodes.close();
+            addedVariantNodes = newNovelVariantStore();
+
+            //skip applied batches
+            if (resume){
+                Properties checkpoint = new Properties();
+                try (FileInputStream fileInputStream = new FileInputStream(checkpointFile)){
+                    checkpoint.load(fileInputStream);
+                }
+                offset = Math.max(offset, Long.parseLong(checkpoint.getProperty("offset")));
+            }
+            writeCheckpoint(checkpointFile, offset);
+            reader.seek(offset);
+
+            try (PrintWriter printWriter = new PrintWriter(new BufferedWriter(new FileWriter(novelVariantFile, true)))){
+                novelVariantLog = printWriter;
+
+                do {
+                    record = reader.next();
+                    if (record != null) batch.add(record.split("\t"));
+
+                    if (batch.size() == batchSize || (record == null && batch.size() > 0)){
+                        applyStagedBatch(batch);
+                        writeCheckpoint(checkpointFile, reader.getOffset());
+                        batch.clear();
+                    }
+                } while (record != null);
+
+            } finally {
+                novelVariantLog = null;
+            }
+
+        }
+
+        writeCarriedVariants();
+
+        //imported variants for annotation, novel variants may be logged more than once after a retry or replay
+        NovelVariantStore novelVariants = newNovelVariantStore();
+        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(novelVariantFile))){
+            String line;
+
+            while ((line = bufferedReader.readLine()) != null){
+                String[] fields = line.split("\t");
+                novelVariants.put(new GenomeVariant(fields[0], Integer.parseInt(fields[1]), fields[2], fields[3]), null);
+            }
+        }
+        addedVariantNodes.close();
+        addedVariantNodes = novelVariants;
+        writeNewVariantsToVCF(new File(segmentName + ".imported.vcf"));
+
+        for (File file : new File[]{segment, checkpointFile, novelVariantFile}){
+            if (!file.delete()) log.log(Level.WARNING, "Could not delete " + file);
+        }
+
+    }
+
+    private void applyStagedBatch(ArrayList<String[]> batch) throws IOException {
+
+        //take variant locks in the same order as concurrent sessions, so batches wait for each other rather than deadlock
+        Collections.sort(batch, new Comparator<String[]>() {
+            @Override
+            public int compare(String[] fields1, String[] fields2) {
+                int compare = fields1[2].compareTo(fields2[2]);
+                if (compare == 0) compare = Integer.compare(Integer.parseInt(fields1[3]), Integer.parseInt(fields2[3]));
+                if (compare == 0) compare = fields1[4].compareTo(fields2[4]);
+                if (compare == 0) compare = fields1[5].compareTo(fields2[5]);
+                return compare;
+            }
+        });
+
+        for (int attempt = 1; ; ++attempt){
+
+            try (Transaction tx = graphDb.beginTx()) {
+
+                for (String[] fields : batch){
+                    GenomeVariant genomeVariant = new GenomeVariant(fields[2], Integer.parseInt(fields[3]), fields[4], fields[5]);
+                    addVariantAndGenotype(genomeVariant, Short.parseShort(fields[7]), runInfoNodes.get(fields[1]), fields[6].equals("1") ? hasHomVariantRelationship : hasHetVariantRelationship);
+                }
+
+                //novel variants are logged before commit
+                novelVariantLog.flush();
+                if (novelVariantLog.checkError()) throw new IOException("Could not log novel variants");
+
+                tx.success();
+                return;
+
+            } catch (TransientFailureException | ConstraintViolationException e){
+
+                //discard uncommitted nodes
+                addedVariantNodes.close();
+                addedVariantNodes = newNovelVariantStore();
+
+                //concurrent importers can deadlock or race on shared nodes
+                if (attempt == maxBatchAttempts) throw e;
+                log.log(Level.WARNING, "Retrying staged batch (attempt " + attempt + "): " + e.getMessage());
+                backOff(attempt);
+            }
+
+        }
+
+    }
+
+    private static void writeCheckpoint(File checkpointFile, long offset) throws IOException {
+        Properties checkpoint = new Properties();
+        File tempFile = new File(checkpointFile.getPath() + ".tmp");
+
+        checkpoint.setProperty("offset", Long.toString(offset));
+
+        try (FileOutputStream fileOutputStream = new FileOutputStream(tempFile)){
+            checkpoint.store(fileOutputStream, "staging checkpoint");
+        }
+
+        Files.move(tempFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //get the minimal representation of an allele, normalising on first use at this site
+    private static GenomeVariant getAlleleVariant(VariantContext variantContext, GenomeVariant[] alleleVariants, Allele allele){
+        int alleleIndex = variantContext.getAlleleIndex(allele);
+
+        if (alleleVariants[alleleIndex] == null){
+            alleleVariants[alleleIndex] = new GenomeVariant(variantContext.getContig(), variantContext.getStart(), variantContext.getReference().getBaseString(), allele.getBaseString());
+            alleleVariants[alleleIndex].convertToMinimalRepresentation();
+        }
+
+        return alleleVariants[alleleIndex];
+    }
+
     public void writeNewVariantsToVCF(){
+        writeNewVariantsToVCF(new File("imported.vcf"));
+    }
+
+    public void writeNewVariantsToVCF(File outputFile){
         log.log(Level.INFO, "Writing imported variants to VCF.");
 
-        try (PrintWriter printWriter = new PrintWriter(new File("imported.vcf"))){
+        try (PrintWriter printWriter = new PrintWriter(outputFile)){
 
             printWriter.println("##fileformat=VCFv4.1");
             printWriter.println("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO");
 
             //write out variants
-            for (Map.Entry<GenomeVariant, Node> iter : addedVariantNodes.entrySet()){
-
-                printWriter.println
-                        (
-                                iter.getKey().getContig() + "\t" +
-                                        iter.getKey().getPos() + "\t" +
-                                        "." + "\t" +
-                                        iter.getKey().getRef() + "\t" +
-                                        iter.getKey().getAlt() + "\t" +
-                                        "." + "\t" +
-                                        "." + "\t" +
-                                        "."
-                        );
+            addedVariantNodes.write(printWriter);
 
-            }
         } catch (IOException e){
             log.log(Level.SEVERE, "Could not output variants.");
+        } finally {
+            addedVariantNodes.close();
         }
 
     }
 
-    private void addVariantAndGenotype(GenomeVariant genomeVariant, short genotypeQuality, Node runInfoNode, RelationshipType relationshipType){
+    private void addVariantAndGenotype(GenomeVariant genomeVariant, short genotypeQuality, Node runInfoNode, RelationshipType relationshipType) throws IOException {
         HashMap<String, Object> properties = new HashMap<>();
 
-        try {
+        Node variantNode = getOrCreateVariantNode(genomeVariant);
+
+        //create genotype relationship and update cohort counts in one transaction
+        try (Transaction tx = graphDb.beginTx()) {
 
-            //create genotype relationship
             properties.put("quality", genotypeQuality);
-            Neo4j.createRelationship(graphDb, runInfoNode, addedVariantNodes.get(genomeVariant), relationshipType, properties);
 
-        } catch(IllegalArgumentException | NullPointerException absentNodeException){
+            if (Neo4j.createRelationship(graphDb, runInfoNode, variantNode, relationshipType, properties)){
+                String countKey = relationshipType.name().equals(hasHomVariantRelationship.name()) ? "homCount" : "hetCount";
+                String assay = runInfoAssays.get(runInfoNode.getId());
 
-            properties.clear();
+                //lock variant so concurrent counts and carriers are not lost
+                tx.acquireWriteLock(variantNode);
 
-            try {
+                Neo4j.incrementNodeProperty(graphDb, variantNode, countKey, 1);
+                if (assay != null) Neo4j.incrementNodeProperty(graphDb, variantNode, getAssayCountKey(countKey, assay), 1);
 
-                //get variant node
-                Node variantNode = Neo4j.getNodes(graphDb, variantLabel, "variantId", genomeVariant.toString()).get(0);
+                //record carrier
+                variantNode.setProperty(CarrierIndex.carriersKey, CarrierIndex.addCarrier(variantNode.getProperty(CarrierIndex.carriersKey, null), runInfoOrdinals.get(runInfoNode.getId())));
+            }
 
-                //create genotype relationship
-                properties.put("quality", genotypeQuality);
-                Neo4j.createRelationship(graphDb, runInfoNode, variantNode, relationshipType, properties);
+            tx.success();
+        }
 
-            } catch (IndexOutOfBoundsException indexOutOfBoundsException) {
+    }
 
-                properties.clear();
+    private Node getOrCreateVariantNode(GenomeVariant genomeVariant) throws IOException {
+        HashMap<String, Object> properties = new HashMap<>();
 
-                //add new variant
-                properties.put("variantId", genomeVariant.toString());
-                Node variantNode = Neo4j.addNode(graphDb, variantLabel, properties);
-                properties.clear();
+        //variant added during this session
+        Node variantNode = addedVariantNodes.get(genomeVariant);
 
-                if (genomeVariant.getContig().equals("X")) {
-                    Neo4j.addNodeLabel(graphDb, variantNode, xChromLabel);
-                } else if (genomeVariant.getContig().equals("Y")) {
-                    Neo4j.addNodeLabel(graphDb, variantNode, yChromLabel);
-                } else if (Integer.parseInt(genomeVariant.getContig()) > 0 && Integer.parseInt(genomeVariant.getContig()) < 23) {
-                    Neo4j.addNodeLabel(graphDb, variantNode, autosomeLabel);
-                }
+        if (variantNode != null){
+            return variantNode;
+        }
 
-                if (genomeVariant.isSnp()) Neo4j.addNodeLabel(graphDb, variantNode, snpLabel);
-                if (genomeVariant.isIndel()) Neo4j.addNodeLabel(graphDb, variantNode, indelLabel);
+        properties.put("contig", genomeVariant.getContig());
+        properties.put("pos", genomeVariant.getPos());
+        properties.put("bin", getGenomicBin(genomeVariant.getContig(), genomeVariant.getPos()));
+
+        //all labels are written with the node
+        ArrayList<Label> labels = new ArrayList<>();
+        Label contigLabel = getContigLabel(genomeVariant.getContig());
+        if (contigLabel != null) labels.add(contigLabel);
+        if (genomeVariant.isSnp()) labels.add(snpLabel);
+        if (genomeVariant.isIndel()) labels.add(indelLabel);
+
+        //get or create on the constrained key the variant is stored under, concurrent sessions wait on the constraint
+        Long variantKey = compactStorage ? getVariantKey(genomeVariant.getContig(), genomeVariant.getPos(), genomeVariant.getRef(), genomeVariant.getAlt()) : null;
+        Neo4j.MergedNode mergedNode = variantKey != null ?
+                Neo4j.mergeNode(graphDb, variantLabel, "variantKey", variantKey, labels, properties) :
+                Neo4j.mergeNode(graphDb, variantLabel, "variantId", genomeVariant.toString(), labels, properties);
+
+        variantNode = mergedNode.getNode();
+        if (!mergedNode.isCreated()){
+            return variantNode;
+        }
 
-                //create genotype relationship
-                properties.put("quality", genotypeQuality);
-                Neo4j.createRelationship(graphDb, runInfoNode, variantNode, relationshipType, properties);
-                properties.clear();
+        addedVariantNodes.put(genomeVariant, variantNode);
+        if (novelVariantLog != null) novelVariantLog.println(genomeVariant.getContig() + "\t" + genomeVariant.getPos() + "\t" + genomeVariant.getRef() + "\t" + genomeVariant.getAlt());
+
+        return variantNode;
+    }
+
+    //classify contigs in the sequence dictionary before import
+    private void classifyContigs(){
+        SAMSequenceDictionary sequenceDictionary = vcfFileReader.getFileHeader().getSequenceDictionary();
+
+        if (sequenceDictionary == null){
+            return;
+        }
+
+        for (SAMSequenceRecord sequenceRecord : sequenceDictionary.getSequences()){
+            getContigLabel(sequenceRecord.getSequenceName());
+        }
+
+        log.log(Level.INFO, "Classified " + sequenceDictionary.size() + " contigs from the sequence dictionary");
+    }
+
+    /**
+     * @return chromosome label for the contig or null for unplaced, unlocalised and other contigs
+     */
+    private static Label getContigLabel(String contig){
+        Label label = contigLabels.get(contig);
+
+        if (label == null){
+            String name = contig.startsWith("chr") ? contig.substring(3) : contig;
+
+            if (name.equals("X")){
+                label = xChromLabel;
+            } else if (name.equals("Y")){
+                label = yChromLabel;
+            } else if (name.equals("MT") || name.equals("M")){
+                label = mtChromLabel;
+            } else if (name.matches("[0-9]{1,2}") && Integer.parseInt(name) > 0 && Integer.parseInt(name) < 23){
+                label = autosomeLabel;
+            } else {
+                label = unclassifiedContig;
+            }
+
+            contigLabels.put(contig, label);
+        }
+
+        return label == unclassifiedContig ? null : label;
+    }
+
+    //variant nodes by identity, SNVs are found by packed key in compact storage
+    private ArrayList<Node> getVariantNodes(String contig, int pos, String ref, String alt){
+        Long variantKey = compactStorage ? getVariantKey(contig, pos, ref, alt) : null;
+
+        if (variantKey != null){
+            return Neo4j.getNodes(graphDb, variantLabel, "variantKey", variantKey);
+        }
 
-                addedVariantNodes.put(genomeVariant, variantNode);
+        return Neo4j.getNodes(graphDb, variantLabel, "variantId", contig + ":" + pos + ref + ">" + alt);
+    }
+
+    private ArrayList<Node> getVariantNodes(VariantContext variantContext){
+        return getVariantNodes(variantContext.getContig(), variantContext.getStart(), variantContext.getAlleles().get(0).getBaseString(), variantContext.getAlleles().get(1).getBaseString());
+    }
+
+    /**
+     * @return packed SNV identity or null if the variant cannot be packed
+     */
+    static Long getVariantKey(String contig, int pos, String ref, String alt){
+        int contigCode = packedContigs.indexOf(contig);
+
+        if (contigCode < 0 || ref.length() != 1 || alt.length() != 1 || packedBases.indexOf(ref) < 0 || packedBases.indexOf(alt) < 0){
+            return null;
+        }
+
+        return ((long) contigCode << 36) | ((long) pos << 4) | (packedBases.indexOf(ref) << 2) | packedBases.indexOf(alt);
+    }
+
+    static GenomeVariant getGenomeVariant(long variantKey){
+        return new GenomeVariant(
+                packedContigs.get((int) (variantKey >>> 36)),
+                (int) ((variantKey >>> 4) & 0xFFFFFFFFL),
+                String.valueOf(packedBases.charAt((int) ((variantKey >>> 2) & 3))),
+                String.valueOf(packedBases.charAt((int) (variantKey & 3)))
+        );
+    }
+
+    //variant identity stored on the node
+    static GenomeVariant getGenomeVariant(Node variantNode){
+
+        //packed SNV
+        if (variantNode.hasProperty("variantKey")){
+            return getGenomeVariant((long) (Long) variantNode.getProperty("variantKey"));
+        }
+
+        String variantId = (String) variantNode.getProperty("variantId");
+        int contigEnd = variantId.lastIndexOf(':');
+        int posEnd = contigEnd + 1;
+        int altStart = variantId.indexOf('>', contigEnd);
+
+        while (Character.isDigit(variantId.charAt(posEnd))){
+            ++posEnd;
+        }
+
+        return new GenomeVariant(
+                variantId.substring(0, contigEnd),
+                Integer.parseInt(variantId.substring(contigEnd + 1, posEnd)),
+                variantId.substring(posEnd, altStart),
+                variantId.substring(altStart + 1)
+        );
+    }
+
+    //variants starting within BED regions, each returned once where regions overlap
+    public ArrayList<Long> getVariantNodeIds(List<GenomicRegion> genomicRegions) throws InvalidPropertiesFormatException {
+        LinkedHashSet<Long> nodeIds = new LinkedHashSet<>();
+
+        //variants added before positions were stored would be missed
+        if (!new File(dbPath, variantPositionsMarker).isFile()){
+            throw new InvalidPropertiesFormatException("Variant positions are not indexed, run with -c to index existing variants");
+        }
+
+        for (GenomicRegion genomicRegion : genomicRegions){
+            ArrayList<Object> bins = new ArrayList<>();
+
+            //bins overlapping region
+            for (int bin = (genomicRegion.getStart() + 1) / genomicBinSize; bin <= genomicRegion.getEnd() / genomicBinSize; ++bin){
+                bins.add(genomicRegion.getContig() + ":" + bin);
             }
 
+            nodeIds.addAll(Neo4j.getNodeIdsInRange(graphDb, variantLabel, "bin", bins, "pos", genomicRegion.getStart() + 1, genomicRegion.getEnd()));
+        }
+
+        return new ArrayList<>(nodeIds);
+    }
+
+    //store contig, pos and bin on variants added before region queries were supported
+    public void indexVariantPositions(int threads) throws IOException {
+        log.log(Level.INFO, "Indexing variant positions using " + threads + " thread(s) ...");
+
+        if (!Neo4j.hasIndex(graphDb, variantLabel, "bin")){
+            Neo4j.createIndexAndWait(graphDb, variantLabel, "bin");
         }
 
+        processVariantNodes(threads, new BatchProcessor<Long>() {
+            @Override
+            public void process(Long variantNodeId) {
+                Node variantNode = graphDb.getNodeById(variantNodeId);
+
+                if (variantNode.hasProperty("bin")){
+                    return;
+                }
+
+                GenomeVariant genomeVariant = getGenomeVariant(variantNode);
+                variantNode.setProperty("contig", genomeVariant.getContig());
+                variantNode.setProperty("pos", genomeVariant.getPos());
+                variantNode.setProperty("bin", getGenomicBin(genomeVariant.getContig(), genomeVariant.getPos()));
+            }
+        });
+
+        writeVariantPositionsMarker();
+    }
+
+    private static String getGenomicBin(String contig, int pos){
+        return contig + ":" + (pos / genomicBinSize);
+    }
+
+    //write genotypes for a worklist as a multi-sample VCF
+    public void exportWorklist(String worklistId, File outputFile, int threads) throws IOException {
+        new VariantExporter(graphDb, worklistId, outputFile, threads).export();
     }
 
     //import annotation VCF
-    public void importAnnotations() throws InvalidPropertiesFormatException {
+    public void importAnnotations() throws IOException {
         log.log(Level.INFO, "Importing annotations ...");
 
+        AnnotationSources annotationSources = openAnnotationSources();
+
+        try (CloseableIterator<VariantContext> variantContextIterator = getVariantContextIterator()) {
+
+            //read annotation VCF file
+            while (variantContextIterator.hasNext()) {
+                VariantContext variantContext = variantContextIterator.next();
+
+                //look up resources while VEP annotations are written
+                ArrayList<Future<HashMap<String, Object>>> sourceAnnotations = annotationSources == null ? null : annotationSources.submit(variantContext);
+
+                //loop up variant Node
+                Node variantNode = getVariantNodes(variantContext).get(0);
+
+                addAnnotations(variantNode, variantContext, sourceAnnotations, false);
+            }
+
+        } finally {
+            if (annotationSources != null) annotationSources.close();
+        }
+
+    }
+
+    //replace annotations for existing variants
+    public void reimportAnnotations(int threads) throws IOException {
+        log.log(Level.INFO, "Re-importing annotations using " + threads + " thread(s) ...");
+
+        final AnnotationSources annotationSources = openAnnotationSources();
+
+        try (final CloseableIterator<VariantContext> variantContextIterator = getVariantContextIterator()) {
+            final ArrayList<String> annotationPropertyKeys = getAnnotationPropertyKeys();
+            if (annotationSources != null) annotationPropertyKeys.addAll(annotationSources.getPropertyKeys());
+
+            //look up resources in file order as variants are read
+            Iterator<PendingAnnotation> pendingAnnotationIterator = new Iterator<PendingAnnotation>() {
+                @Override
+                public boolean hasNext() {
+                    return variantContextIterator.hasNext();
+                }
+
+                @Override
+                public PendingAnnotation next() {
+                    VariantContext variantContext = variantContextIterator.next();
+                    return new PendingAnnotation(variantContext, annotationSources == null ? null : annotationSources.submit(variantContext));
+                }
+            };
+
+            processBatches(pendingAnnotationIterator, threads, new BatchProcessor<PendingAnnotation>() {
+                @Override
+                public void process(PendingAnnotation pendingAnnotation) throws IOException {
+                    reannotateVariant(pendingAnnotation, annotationPropertyKeys);
+                }
+            });
+
+        } finally {
+            if (annotationSources != null) annotationSources.close();
+        }
+
+    }
+
+    private void reannotateVariant(PendingAnnotation pendingAnnotation, ArrayList<String> annotationPropertyKeys) throws IOException {
+        VariantContext variantContext = pendingAnnotation.variantContext;
+        ArrayList<Node> variantNodes = getVariantNodes(variantContext);
+
+        if (variantNodes.size() == 0){
+            log.log(Level.WARNING, getVariantId(variantContext) + " is not in the database and could not be re-annotated.");
+            return;
+        }
+
+        Node variantNode = variantNodes.get(0);
+
+        //remove old annotations and scores
+        Neo4j.deleteNeighbourNodes(graphDb, variantNode, annotationLabel, Direction.OUTGOING);
+        Neo4j.deleteRelationships(graphDb, variantNode, inSymbolRelationship, Direction.OUTGOING);
+        Neo4j.removeNodeProperties(graphDb, variantNode, annotationPropertyKeys);
+
+        addAnnotations(variantNode, variantContext, pendingAnnotation.sourceAnnotations, true);
+    }
+
+    private static class PendingAnnotation {
+        private final VariantContext variantContext;
+        private final ArrayList<Future<HashMap<String, Object>>> sourceAnnotations;
+
+        private PendingAnnotation(VariantContext variantContext, ArrayList<Future<HashMap<String, Object>>> sourceAnnotations){
+            this.variantContext = variantContext;
+            this.sourceAnnotations = sourceAnnotations;
+        }
+    }
+
+    private AnnotationSources openAnnotationSources() throws IOException {
+        return annotationSourceConfig == null ? null : AnnotationSources.readConfig(annotationSourceConfig);
+    }
+
+    //recompute cohort genotype counts and carriers for every variant
+    public void rebuildCohortCounts(int threads) throws IOException {
+        log.log(Level.INFO, "Rebuilding cohort counts and carriers using " + threads + " thread(s) ...");
+
+        final HashMap<Long, String> assays = new HashMap<>();
+        final HashMap<Long, Integer> ordinals = new HashMap<>();
+
+        //analyses imported before carriers were stored have no ordinal
+        carrierIndex.assignRunOrdinals();
+
+        //get assay and carrier ordinal for every analysis
+        try (Transaction tx = graphDb.beginTx()) {
+            try (ResourceIterator<Node> nodes = graphDb.findNodes(runInfoLabel)) {
+                while (nodes.hasNext()) {
+                    Node runInfoNode = nodes.next();
+                    assays.put(runInfoNode.getId(), (String) runInfoNode.getProperty("assay", null));
+                    ordinals.put(runInfoNode.getId(), (Integer) runInfoNode.getProperty("ordinal"));
+                }
+            }
+            tx.success();
+        }
+
+        if (!Neo4j.hasIndex(graphDb, runInfoLabel, "ordinal")){
+            Neo4j.createIndexAndWait(graphDb, runInfoLabel, "ordinal");
+        }
+
+        processVariantNodes(threads, new BatchProcessor<Long>() {
+            @Override
+            public void process(Long variantNodeId) {
+                HashMap<String, Object> counts = new HashMap<>();
+                Node variantNode = graphDb.getNodeById(variantNodeId);
+                Object carriers = null;
+
+                counts.put("hetCount", 0);
+                counts.put("homCount", 0);
+
+                //count genotypes
+                for (Relationship relationship : variantNode.getRelationships(Direction.INCOMING, hasHetVariantRelationship, hasHomVariantRelationship)){
+                    String countKey = relationship.isType(hasHomVariantRelationship) ? "homCount" : "hetCount";
+                    String assay = assays.get(relationship.getStartNode().getId());
+
+                    counts.put(countKey, (Integer) counts.get(countKey) + 1);
+                    if (assay != null){
+                        counts.put(getAssayCountKey(countKey, assay), counts.containsKey(getAssayCountKey(countKey, assay)) ? (Integer) counts.get(getAssayCountKey(countKey, assay)) + 1 : 1);
+                    }
+
+                    carriers = CarrierIndex.addCarrier(carriers, ordinals.get(relationship.getStartNode().getId()));
+                }
+
+                if (carriers != null){
+                    counts.put(CarrierIndex.carriersKey, carriers);
+                } else {
+                    variantNode.removeProperty(CarrierIndex.carriersKey);
+                }
+
+                //replace existing counts
+                ArrayList<String> countKeys = new ArrayList<>();
+                for (String key : variantNode.getPropertyKeys()){
+                    if (key.startsWith("hetCount") || key.startsWith("homCount")) countKeys.add(key);
+                }
+
+                Neo4j.removeNodeProperties(graphDb, variantNode, countKeys);
+                Neo4j.setNodeProperties(graphDb, variantNode, counts);
+            }
+        });
+
+        for (Long runInfoNodeId : ordinals.keySet()){
+            carrierIndex.writeCarriedVariants(runInfoNodeId);
+        }
+
+        carrierIndex.setComplete();
+    }
+
+    private static String getAssayCountKey(String countKey, String assay){
+        return countKey + assay.replaceAll("[^A-Za-z0-9]", "");
+    }
+
+    //process every variant by node id, ids are read from the label scan as batches are queued rather than held for the whole store
+    private void processVariantNodes(int threads, BatchProcessor<Long> batchProcessor) throws InvalidPropertiesFormatException {
+
+        try (Transaction tx = graphDb.beginTx();
+             final ResourceIterator<Node> variantNodes = graphDb.findNodes(variantLabel)) {
+
+            processBatches(new Iterator<Long>() {
+                @Override
+                public boolean hasNext() {
+                    return variantNodes.hasNext();
+                }
+
+                @Override
+                public Long next() {
+                    return variantNodes.next().getId();
+                }
+            }, threads, batchProcessor);
+
+            tx.success();
+        }
+
+    }
+
+    //process items in batches, each batch in one transaction, using a pool of worker threads
+    private <T> void processBatches(Iterator<T> iterator, int threads, final BatchProcessor<T> batchProcessor) throws InvalidPropertiesFormatException {
+
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        final Semaphore pendingBatches = new Semaphore(threads * 2); //bound the number of batches held in memory
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        ArrayList<T> batch = new ArrayList<>(batchSize);
+
+        try {
+
+            while (iterator.hasNext() && failure.get() == null) {
+                batch.add(iterator.next());
+
+                if (batch.size() == batchSize || !iterator.hasNext()){
+                    final ArrayList<T> pendingBatch = batch;
+                    batch = new ArrayList<>(batchSize);
+
+                    pendingBatches.acquire();
+                    executorService.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                processBatch(pendingBatch, batchProcessor);
+                            } catch (Exception e){
+                                failure.compareAndSet(null, e);
+                            } finally {
+                                pendingBatches.release();
+                            }
+                        }
+                    });
+                }
+
+            }
+
+            executorService.shutdown();
+            executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+        } catch (InterruptedException e){
+            executorService.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InvalidPropertiesFormatException("Batch processing interrupted");
+        }
+
+        if (failure.get() != null){
+            log.log(Level.SEVERE, "Could not process batch: " + failure.get().getMessage());
+            throw new InvalidPropertiesFormatException("Batch processing failed: " + failure.get().getMessage());
+        }
+
+    }
+
+    private <T> void processBatch(ArrayList<T> batch, BatchProcessor<T> batchProcessor) throws Exception {
+
+        for (int attempt = 1; ; ++attempt){
+
+            try (Transaction tx = graphDb.beginTx()) {
+
+                for (T item : batch){
+                    batchProcessor.process(item);
+                }
+
+                tx.success();
+                return;
+
+            } catch (TransientFailureException | ConstraintViolationException e){
+
+                //concurrent batches can deadlock or race on shared nodes
+                if (attempt == maxBatchAttempts) throw e;
+                log.log(Level.WARNING, "Retrying batch (attempt " + attempt + "): " + e.getMessage());
+                backOff(attempt);
+
+            }
+
+        }
+
+    }
+
+    //random wait so batches which deadlocked do not collide again on retry
+    private static void backOff(int attempt) throws InterruptedIOException {
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextInt(100 * attempt));
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted retrying batch");
+        }
+    }
+
+    private interface BatchProcessor<T> {
+        void process(T item) throws Exception;
+    }
+
+    private void addAnnotations(Node variantNode, VariantContext variantContext, ArrayList<Future<HashMap<String, Object>>> sourceAnnotations, boolean overwrite) throws IOException {
         HashMap<String, Object> properties = new HashMap<>();
-        Iterator<VariantContext> variantContextIterator = vcfFileReader.iterator();
 
-        //read annotation VCF file
-        while (variantContextIterator.hasNext()) {
-            VariantContext variantContext = variantContextIterator.next();
+        //add dbSNP Id
+        if (variantContext.getID() != null && !variantContext.getID().equals("") && !variantContext.getID().equals(".")){
 
-            //loop up variant Node
-            String variantId = variantContext.getContig() + ":" +
-                    variantContext.getStart() +
-                    variantContext.getAlleles().get(0).getBaseString() + ">" +
-                    variantContext.getAlleles().get(1).getBaseString();
-            
-            Node variantNode = Neo4j.getNodes(graphDb, variantLabel, "variantId", variantId).get(0);
+            properties.put("dbSnpId", variantContext.getID());
+            addNodeProperties(variantNode, properties, overwrite);
 
-            //add dbSNP Id
-            if (variantContext.getID() != null && !variantContext.getID().equals("") && !variantContext.getID().equals(".")){
+            properties.clear();
+        }
 
-                properties.put("dbSnpId", variantContext.getID());
-                Neo4j.addNodeProperties(graphDb, variantNode, properties);
+        addVepAnnotations(variantNode, variantContext, overwrite);
+        addPopulationFrequencies(variantNode, variantContext, overwrite);
+        addConservationScores(variantNode, variantContext, overwrite);
 
-                properties.clear();
+        //add annotation source properties
+        if (sourceAnnotations != null){
+            addNodeProperties(variantNode, AnnotationSources.get(sourceAnnotations), overwrite);
+        }
+
+    }
+
+    private void addNodeProperties(Node node, HashMap<String, Object> properties, boolean overwrite){
+        if (overwrite){
+            Neo4j.setNodeProperties(graphDb, node, properties);
+        } else {
+            Neo4j.addNodeProperties(graphDb, node, properties);
+        }
+    }
+
+    //decompress and decode records on a background thread
+    private CloseableIterator<VariantContext> getVariantContextIterator(){
+        final CloseableIterator<VariantContext> variantContextIterator = new AsyncBufferedIterator<>(vcfFileReader.iterator(), readAheadBufferSize, readAheadBuffers);
+
+        if (importProgress == null){
+            return variantContextIterator;
+        }
+
+        importProgress.start();
+
+        //track position of records as they are consumed
+        return new CloseableIterator<VariantContext>() {
+            private boolean exhausted = false; //completed when every record was read
+
+            @Override
+            public boolean hasNext() {
+                boolean hasNext = variantContextIterator.hasNext();
+                if (!hasNext) exhausted = true;
+                return hasNext;
+            }
+
+            @Override
+            public VariantContext next() {
+                VariantContext variantContext = variantContextIterator.next();
+                importProgress.update(variantContext.getContig(), variantContext.getStart());
+                return variantContext;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
             }
 
-            addVepAnnotations(variantNode, variantContext);
-            addPopulationFrequencies(variantNode, variantContext);
-            addConservationScores(variantNode, variantContext);
+            @Override
+            public void close() {
+                try {
+                    importProgress.finish(exhausted);
+                } finally {
+                    variantContextIterator.close();
+                }
+            }
+        };
+    }
 
+    private static String getVariantId(VariantContext variantContext){
+        return variantContext.getContig() + ":" +
+                variantContext.getStart() +
+                variantContext.getAlleles().get(0).getBaseString() + ">" +
+                variantContext.getAlleles().get(1).getBaseString();
+    }
+
+    private static ArrayList<String> getAnnotationPropertyKeys(){
+        ArrayList<String> keys = new ArrayList<>();
+
+        keys.add("dbSnpId");
+        keys.add("gerp");
+        keys.add("phastCons");
+        keys.add("phyloP");
+
+        for (kGPhase3Population populationFrequency : kGPhase3Population.values()){
+            keys.add("kGPhase3" + populationFrequency.toString() + "Af");
+        }
+        for (exacPopulation populationFrequency : exacPopulation.values()){
+            keys.add("exac" + populationFrequency.toString() + "Af");
         }
+
+        return keys;
     }
 
-    private void addVepAnnotations(Node variantNode, VariantContext variantContext) throws InvalidPropertiesFormatException {
+    private void addVepAnnotations(Node variantNode, VariantContext variantContext, boolean overwrite) throws IOException {
 
         HashMap<String, Object> properties = new HashMap<>();
         HashSet<VEPAnnotationv82> vepAnnotations = new HashSet<>();
@@ -411,7 +1344,7 @@ public class VariantDatabase {
                 }
                 if (annotation.getExon() != null) properties.put("totalExons", Short.parseShort(annotation.getExon().split("/")[1]));
 
-                Neo4j.addNodeProperties(graphDb, featureNode, properties);
+                addNodeProperties(featureNode, properties, overwrite);
                 properties.clear();
 
                 if (annotation.isCanonical()) {
@@ -420,22 +1353,22 @@ public class VariantDatabase {
             }
 
             //add annotation
-            if (annotation.getHgvsc() != null) properties.put("hgvsc", annotation.getHgvsc());
+            if (annotation.getHgvsc() != null) properties.put("hgvsc", compactStorage ? getHgvsWithoutFeature(annotation.getHgvsc()) : annotation.getHgvsc());
             if (annotation.getHgvsp() != null) properties.put("hgvsp", annotation.getHgvsp());
             if (annotation.getExon() != null) properties.put("exon", annotation.getExon().split("/")[0]); //must remain as string, can be given as range i.e. 1-2
             if (annotation.getIntron() != null) properties.put("intron", annotation.getIntron().split("/")[0]); //must remain as string, can be given as range i.e. 1-2
-            if (annotation.getSift() != null) properties.put("sift", annotation.getSift());
-            if (annotation.getPolyPhen() != null) properties.put("polyphen", annotation.getPolyPhen());
-            if (annotation.getCodons() != null) properties.put("codons", annotation.getCodons());
+            if (annotation.getSift() != null) addPrediction(properties, "sift", annotation.getSift());
+            if (annotation.getPolyPhen() != null) addPrediction(properties, "polyphen", annotation.getPolyPhen());
+            if (annotation.getCodons() != null) properties.put("codons", compactStorage ? propertyDictionary.encode("codons", annotation.getCodons()) : annotation.getCodons());
 
             //add protein domains Pfam_domain
             if (annotation.getDomains().containsKey("Pfam_domain")){
-                properties.put("pfamDomain", annotation.getDomains().get("Pfam_domain").toArray(new String[annotation.getDomains().get("Pfam_domain").size()]));
+                addDomains(properties, "pfamDomain", annotation.getDomains().get("Pfam_domain"));
             }
 
             //add protein domains hmmpanther
             if (annotation.getDomains().containsKey("hmmpanther")){
-                properties.put("hmmPanther", annotation.getDomains().get("hmmpanther").toArray(new String[annotation.getDomains().get("hmmpanther").size()]));
+                addDomains(properties, "hmmPanther", annotation.getDomains().get("hmmpanther"));
             }
 
             //add protein domains PROSITE_profiles && PROSITE_patterns
@@ -446,41 +1379,121 @@ public class VariantDatabase {
                 if (annotation.getDomains().containsKey("PROSITE_profiles")) temp.addAll(annotation.getDomains().get("PROSITE_profiles"));
                 if (annotation.getDomains().containsKey("PROSITE_patterns")) temp.addAll(annotation.getDomains().get("PROSITE_patterns"));
 
-                properties.put("prosite", temp.toArray(new String[temp.size()]));
+                addDomains(properties, "prosite", temp);
             }
 
             //add protein domains Superfamily_domains
             if (annotation.getDomains().containsKey("Superfamily_domains")){
-                properties.put("superfamilyDomains", annotation.getDomains().get("Superfamily_domains").toArray(new String[annotation.getDomains().get("Superfamily_domains").size()]));
+                addDomains(properties, "superfamilyDomains", annotation.getDomains().get("Superfamily_domains"));
             }
 
-            annotationNode = Neo4j.addNode(graphDb, annotationLabel, properties);
-            properties.clear();
+            //write annotation and its relationships together
+            try (Transaction tx = graphDb.beginTx()) {
 
-            //link consequences
-            if (annotation.getConsequences().size() > 0) {
+                annotationNode = Neo4j.addNode(graphDb, annotationLabel, properties);
+                properties.clear();
+
+                //link consequences, annotation is new so relationships cannot already exist
+                ArrayList<RelationshipType> consequenceRelationshipTypes = new ArrayList<>();
                 for (String consequence : annotation.getConsequences()) {
-                    Neo4j.createRelationship(graphDb, variantNode, annotationNode, RelationshipType.withName("HAS_" + consequence.toUpperCase() + "_CONSEQUENCE"), properties);
+                    consequenceRelationshipTypes.add(getConsequenceRelationship(consequence));
                 }
-            } else {
-                Neo4j.createRelationship(graphDb, variantNode, annotationNode, hasUnknownConsequenceRelationship, properties);
-            }
+                if (consequenceRelationshipTypes.size() == 0) {
+                    consequenceRelationshipTypes.add(hasUnknownConsequenceRelationship);
+                }
+                Neo4j.createRelationships(graphDb, variantNode, annotationNode, consequenceRelationshipTypes);
 
-            //add in feature relationship
-            if (annotationNode != null && featureNode != null) {
-                Neo4j.createRelationship(graphDb, annotationNode, featureNode, inFeatureRelationship, properties);
-            }
+                //add in feature relationship
+                if (featureNode != null) {
+                    Neo4j.createRelationships(graphDb, annotationNode, featureNode, Collections.singletonList(inFeatureRelationship));
+                }
+
+                //add in symbol relationship
+                if (symbolNode != null && featureNode != null) {
+                    Neo4j.createRelationship(graphDb, symbolNode, featureNode, getBiotypeRelationship(annotation.getBiotype()), properties);
+                }
 
-            //add in symbol relationship
-            if (symbolNode != null && featureNode != null) {
-                Neo4j.createRelationship(graphDb, symbolNode, featureNode, RelationshipType.withName("HAS_" + annotation.getBiotype().toUpperCase() + "_BIOTYPE"), properties);
+                tx.success();
             }
 
         }
 
     }
 
-    private void addPopulationFrequencies(Node variantNode, VariantContext variantContext){
+    //feature is linked by IN_FEATURE
+    private static String getHgvsWithoutFeature(String hgvs){
+        return hgvs.substring(hgvs.indexOf(':') + 1);
+    }
+
+    //category code and score in compact storage e.g. deleterious(0.01)
+    private void addPrediction(HashMap<String, Object> properties, String key, String prediction) throws IOException {
+        int scoreStart = prediction.indexOf('(');
+
+        if (!compactStorage){
+            properties.put(key, prediction);
+        } else if (scoreStart < 0 || !prediction.endsWith(")")){
+            properties.put(key, propertyDictionary.encode(key, prediction));
+        } else {
+            properties.put(key, propertyDictionary.encode(key, prediction.substring(0, scoreStart)));
+            properties.put(key + "Score", Float.parseFloat(prediction.substring(scoreStart + 1, prediction.length() - 1)));
+        }
+    }
+
+    /**
+     * Reads an annotation property as imported, decoding dictionary codes in compact storage. Predictions are
+     * rejoined with their score e.g. deleterious(0.01). Must be called inside a transaction.
+     */
+    public Object getAnnotationProperty(PropertyContainer propertyContainer, String key) throws InvalidPropertiesFormatException {
+        Object value = propertyContainer.getProperty(key, null);
+
+        if (!compactStorage || value == null){
+            return value;
+        }
+
+        if (predictionKeys.contains(key)){
+            String prediction = propertyDictionary.decode(key, (Integer) value);
+            Object score = propertyContainer.getProperty(key + "Score", null);
+            return score == null ? prediction : prediction + "(" + score + ")";
+        } else if (dictionaryKeys.contains(key)){
+            return value instanceof int[] ? propertyDictionary.decode(key, (int[]) value) : propertyDictionary.decode(key, (Integer) value);
+        }
+
+        return value;
+    }
+
+    //domain codes in compact storage
+    private void addDomains(HashMap<String, Object> properties, String key, Collection<String> domains) throws IOException {
+        if (compactStorage){
+            properties.put(key, propertyDictionary.encode(key, domains));
+        } else {
+            properties.put(key, domains.toArray(new String[domains.size()]));
+        }
+    }
+
+    //unknown terms are interned on first use
+    private static RelationshipType getConsequenceRelationship(String consequence){
+        RelationshipType relationshipType = consequenceRelationships.get(consequence);
+
+        if (relationshipType == null){
+            relationshipType = RelationshipType.withName("HAS_" + consequence.toUpperCase() + "_CONSEQUENCE");
+            consequenceRelationships.putIfAbsent(consequence, relationshipType);
+        }
+
+        return relationshipType;
+    }
+
+    private static RelationshipType getBiotypeRelationship(String biotype){
+        RelationshipType relationshipType = biotypeRelationships.get(biotype);
+
+        if (relationshipType == null){
+            relationshipType = RelationshipType.withName("HAS_" + biotype.toUpperCase() + "_BIOTYPE");
+            biotypeRelationships.putIfAbsent(biotype, relationshipType);
+        }
+
+        return relationshipType;
+    }
+
+    private void addPopulationFrequencies(Node variantNode, VariantContext variantContext, boolean overwrite){
 
         int minimumAllelesForAFCalculation = 120;
         HashMap<String, Object> properties = new HashMap<>();
@@ -501,11 +1514,11 @@ public class VariantDatabase {
             }
         }
 
-        Neo4j.addNodeProperties(graphDb, variantNode, properties);
+        addNodeProperties(variantNode, properties, overwrite);
 
     }
 
-    private void addConservationScores(Node variantNode, VariantContext variantContext){
+    private void addConservationScores(Node variantNode, VariantContext variantContext, boolean overwrite){
         HashMap<String, Object> properties = new HashMap<>();
 
         if (variantContext.getAttribute("GERP") != null && !variantContext.getAttribute("GERP").equals(".")) {
@@ -518,7 +1531,7 @@ public class VariantDatabase {
             properties.put("phyloP", Float.parseFloat((String) variantContext.getAttribute("phyloP")));
         }
 
-        Neo4j.addNodeProperties(graphDb, variantNode, properties);
+        addNodeProperties(variantNode, properties, overwrite);
 
     }
 
@@ -539,9 +1552,18 @@ public class VariantDatabase {
 
     public void shutdownDatabase(){
         log.log(Level.INFO, "Shutting down database ...");
+
+        carrierIndex.close();
+
+        if (propertyDictionary != null) propertyDictionary.close();
+
         Neo4j.shutdownDatabase(graphDb);
     }
 
+    public CarrierIndex getCarrierIndex() {
+        return carrierIndex;
+    }
+
     public static Label getSampleLabel() {
         return sampleLabel;
     }
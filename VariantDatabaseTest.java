@@ -0,0 +1,57 @@
+package nhs.genetics.cardiff;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for packing SNV identity in compact storage
+ *
+ * @author  agent
+ * @version 1.0
+ * @since   2026-10-19
+ */
+public class VariantDatabaseTest {
+
+    @Test
+    public void unpacksPackedVariants() {
+        String[][] variants = {
+                {"1", "1", "A", "C"},
+                {"2", "48000000", "G", "T"},
+                {"X", "155270560", "T", "A"},
+                {"MT", "16569", "C", "G"},
+                {"1", Integer.toString(Integer.MAX_VALUE), "T", "T"}
+        };
+
+        for (String[] variant : variants){
+            Long variantKey = VariantDatabase.getVariantKey(variant[0], Integer.parseInt(variant[1]), variant[2], variant[3]);
+            GenomeVariant genomeVariant = VariantDatabase.getGenomeVariant(variantKey);
+
+            assertEquals(variant[0], genomeVariant.getContig());
+            assertEquals(Integer.parseInt(variant[1]), genomeVariant.getPos());
+            assertEquals(variant[2], genomeVariant.getRef());
+            assertEquals(variant[3], genomeVariant.getAlt());
+        }
+    }
+
+    @Test
+    public void packsEachFieldSeparately() {
+        long variantKey = VariantDatabase.getVariantKey("2", 100, "A", "C");
+
+        assertNotEquals(variantKey, (long) VariantDatabase.getVariantKey("3", 100, "A", "C"));
+        assertNotEquals(variantKey, (long) VariantDatabase.getVariantKey("2", 101, "A", "C"));
+        assertNotEquals(variantKey, (long) VariantDatabase.getVariantKey("2", 100, "C", "C"));
+        assertNotEquals(variantKey, (long) VariantDatabase.getVariantKey("2", 100, "A", "G"));
+    }
+
+    @Test
+    public void leavesUnpackableVariantsUnpacked() {
+        assertNull(VariantDatabase.getVariantKey("1", 100, "AT", "A"));
+        assertNull(VariantDatabase.getVariantKey("1", 100, "A", "N"));
+        assertNull(VariantDatabase.getVariantKey("GL000192.1", 100, "A", "C"));
+        assertNull(VariantDatabase.getVariantKey("chr1", 100, "A", "C"));
+    }
+
+}
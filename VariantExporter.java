@@ -0,0 +1,419 @@
+package nhs.genetics.cardiff;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import org.neo4j.graphdb.*;
+import org.neo4j.io.fs.FileUtils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A class for exporting the genotypes of a worklist as a multi-sample, coordinate sorted, BGZF compressed VCF.
+ * Each analysis is read on its own thread into sorted runs on disk which are merged by position when written out,
+ * at most maxMergeFanIn runs at a time.
+ *
+ * @author  agent
+ * @version 1.0
+ * @since   2026-10-19
+ */
+public class VariantExporter {
+    private static final Logger log = Logger.getLogger(VariantExporter.class.getName());
+
+    private static final int maxRecordsPerRun = 100000; //genotypes held in memory per analysis before spilling
+    static final int maxMergeFanIn = 64; //spilled runs open at once while merging
+
+    private final GraphDatabaseService graphDb;
+    private final String worklistId;
+    private final File outputFile;
+    private final int threads;
+
+    public VariantExporter(GraphDatabaseService graphDb, String worklistId, File outputFile, int threads){
+        this.graphDb = graphDb;
+        this.worklistId = worklistId;
+        this.outputFile = outputFile;
+        this.threads = threads;
+    }
+
+    public void export() throws IOException {
+        log.log(Level.INFO, "Exporting worklist " + worklistId + " to " + outputFile + " using " + threads + " thread(s) ...");
+
+        ArrayList<Node> runInfoNodes = Neo4j.getNodes(graphDb, VariantDatabase.getRunInfoLabel(), "worklistId", worklistId);
+        if (runInfoNodes.size() == 0){
+            throw new InvalidPropertiesFormatException("No analyses found for worklist " + worklistId);
+        }
+
+        final ArrayList<String> sampleNames = getSampleNames(runInfoNodes);
+        final ConcurrentSkipListSet<String> contigs = new ConcurrentSkipListSet<>(new ContigComparator());
+        final File tempDirectory = Files.createTempDirectory(outputFile.getAbsoluteFile().getParentFile().toPath(), "export").toFile();
+        ArrayList<Future<ArrayList<File>>> futures = new ArrayList<>();
+        ArrayList<File> runs = new ArrayList<>();
+
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+
+        try {
+
+            //read genotypes for each analysis in parallel
+            for (int n = 0; n < runInfoNodes.size(); ++n){
+                final Node runInfoNode = runInfoNodes.get(n);
+                final int sampleIndex = n;
+
+                futures.add(executorService.submit(new Callable<ArrayList<File>>() {
+                    @Override
+                    public ArrayList<File> call() throws IOException {
+                        return readGenotypes(runInfoNode, sampleIndex, contigs, tempDirectory);
+                    }
+                }));
+            }
+
+            for (Future<ArrayList<File>> future : futures){
+                runs.addAll(future.get());
+            }
+
+            write(sampleNames, contigs, mergeRuns(runs, tempDirectory));
+
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted exporting worklist " + worklistId);
+        } catch (ExecutionException e){
+            throw new IOException("Could not read genotypes: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            executorService.shutdownNow();
+            FileUtils.deleteRecursively(tempDirectory);
+        }
+
+    }
+
+    //sample column names, falling back to analysisId for samples sequenced more than once
+    private ArrayList<String> getSampleNames(ArrayList<Node> runInfoNodes){
+        ArrayList<String> sampleIds = new ArrayList<>();
+        ArrayList<String> sampleNames = new ArrayList<>();
+        ArrayList<Long> runInfoNodeIds = new ArrayList<>();
+
+        for (Node runInfoNode : runInfoNodes){
+            runInfoNodeIds.add(runInfoNode.getId());
+        }
+
+        //samples of every analysis in one lookup
+        HashMap<Long, long[]> sampleNodeIds = Neo4j.findNeighbourNodeIdsWithParameters(graphDb, runInfoNodeIds, VariantDatabase.getSampleLabel(), Direction.INCOMING, VariantDatabase.getHasAnalysisRelationship(), null);
+
+        try (Transaction tx = graphDb.beginTx()) {
+            for (Node runInfoNode : runInfoNodes){
+                long[] sampleNodeId = sampleNodeIds.get(runInfoNode.getId());
+                sampleIds.add(sampleNodeId.length == 0 ? (String) runInfoNode.getProperty("analysisId") : (String) graphDb.getNodeById(sampleNodeId[0]).getProperty("sampleId"));
+            }
+
+            for (int n = 0; n < runInfoNodes.size(); ++n){
+                if (Collections.frequency(sampleIds, sampleIds.get(n)) > 1){
+                    sampleNames.add((String) runInfoNodes.get(n).getProperty("analysisId"));
+                } else {
+                    sampleNames.add(sampleIds.get(n));
+                }
+            }
+
+            tx.success();
+        }
+
+        return sampleNames;
+    }
+
+    private ArrayList<File> readGenotypes(Node runInfoNode, int sampleIndex, Set<String> contigs, File tempDirectory) throws IOException {
+        ArrayList<Record> records = new ArrayList<>();
+        ArrayList<File> runs = new ArrayList<>();
+
+        try (Transaction tx = graphDb.beginTx()) {
+
+            for (Relationship relationship : runInfoNode.getRelationships(Direction.OUTGOING, VariantDatabase.getHasHetVariantRelationship(), VariantDatabase.getHasHomVariantRelationship())){
+                GenomeVariant genomeVariant = VariantDatabase.getGenomeVariant(relationship.getEndNode());
+                boolean hom = relationship.isType(VariantDatabase.getHasHomVariantRelationship());
+                Object quality = relationship.getProperty("quality", null);
+
+                contigs.add(genomeVariant.getContig());
+                records.add(new Record(genomeVariant.getContig(), genomeVariant.getPos(), genomeVariant.getRef(), genomeVariant.getAlt(),
+                        sampleIndex, (hom ? "1/1" : "0/1") + ":" + (quality == null ? "." : quality.toString())));
+
+                if (records.size() >= maxRecordsPerRun){
+                    runs.add(spill(records, tempDirectory));
+                }
+            }
+
+            tx.success();
+        }
+
+        if (records.size() > 0){
+            runs.add(spill(records, tempDirectory));
+        }
+
+        return runs;
+    }
+
+    private static File spill(ArrayList<Record> records, File tempDirectory) throws IOException {
+        File file = File.createTempFile("genotypes", ".tsv", tempDirectory);
+
+        Collections.sort(records);
+
+        try (PrintWriter printWriter = new PrintWriter(new BufferedWriter(new FileWriter(file)))){
+            for (Record record : records){
+                printWriter.println(record.toLine());
+            }
+        }
+
+        records.clear();
+
+        return file;
+    }
+
+    //merge spilled runs in passes until the final merge is within the fan-in
+    static ArrayList<File> mergeRuns(ArrayList<File> runs, File tempDirectory) throws IOException {
+
+        while (runs.size() > maxMergeFanIn){
+            ArrayList<File> mergedRuns = new ArrayList<>();
+
+            log.log(Level.INFO, "Merging " + runs.size() + " spilled runs of genotypes ...");
+
+            for (int n = 0; n < runs.size(); n += maxMergeFanIn){
+                List<File> group = runs.subList(n, Math.min(n + maxMergeFanIn, runs.size()));
+
+                if (group.size() == 1){
+                    mergedRuns.add(group.get(0));
+                    continue;
+                }
+
+                File file = File.createTempFile("genotypes", ".tsv", tempDirectory);
+                mergedRuns.add(file);
+
+                try (PrintWriter printWriter = new PrintWriter(new BufferedWriter(new FileWriter(file)))){
+                    merge(group, printWriter, null);
+                }
+
+                for (File merged : group){
+                    if (!merged.delete()) log.log(Level.WARNING, "Could not delete " + merged);
+                }
+            }
+
+            runs = mergedRuns;
+        }
+
+        return runs;
+    }
+
+    private void write(ArrayList<String> sampleNames, Set<String> contigs, ArrayList<File> runs) throws IOException {
+        long rows;
+
+        try (PrintWriter printWriter = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new BlockCompressedOutputStream(outputFile), "UTF-8")))){
+
+            printWriter.println("##fileformat=VCFv4.1");
+            printWriter.println("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">");
+            printWriter.println("##FORMAT=<ID=GQ,Number=1,Type=Integer,Description=\"Genotype Quality\">");
+            printWriter.println("##source=ImportToNeo4j worklist " + worklistId);
+            for (String contig : contigs){
+                printWriter.println("##contig=<ID=" + contig + ">");
+            }
+
+            printWriter.print("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT");
+            for (String sampleName : sampleNames){
+                printWriter.print("\t" + sampleName);
+            }
+            printWriter.println();
+
+            rows = merge(runs, printWriter, new String[sampleNames.size()]);
+        }
+
+        log.log(Level.INFO, "Exported " + rows + " variants for " + sampleNames.size() + " analyses.");
+    }
+
+    /**
+     * Merges sorted runs, into one row per variant when genotypes has a slot per sample, otherwise copying genotypes
+     * into a single sorted run.
+     *
+     * @return number of rows or genotypes written
+     */
+    static long merge(List<File> runs, PrintWriter printWriter, String[] genotypes) throws IOException {
+        PriorityQueue<Run> queue = new PriorityQueue<>();
+        Record last = null;
+        long written = 0;
+
+        try {
+
+            for (File file : runs){
+                Run run = new Run(new BufferedReader(new FileReader(file)));
+                if (run.advance()){
+                    queue.add(run);
+                } else {
+                    run.close();
+                }
+            }
+
+            while (!queue.isEmpty()){
+                Run run = queue.poll();
+
+                if (genotypes == null){
+                    printWriter.println(run.head.toLine());
+                    ++written;
+                } else {
+
+                    //write previous variant
+                    if (last != null && last.compareTo(run.head) != 0){
+                        writeRow(printWriter, last, genotypes);
+                        ++written;
+                    }
+
+                    last = run.head;
+                    genotypes[run.head.sampleIndex] = run.head.genotype;
+                }
+
+                if (run.advance()){
+                    queue.add(run);
+                } else {
+                    run.close();
+                }
+            }
+
+            if (last != null){
+                writeRow(printWriter, last, genotypes);
+                ++written;
+            }
+
+        } finally {
+            for (Run run : queue){
+                run.close();
+            }
+        }
+
+        if (printWriter.checkError()){
+            throw new IOException("Could not write merged genotypes");
+        }
+
+        return written;
+    }
+
+    private static void writeRow(PrintWriter printWriter, Record record, String[] genotypes){
+        StringBuilder row = new StringBuilder();
+
+        row.append(record.contig).append("\t")
+                .append(record.pos).append("\t")
+                .append(".").append("\t")
+                .append(record.ref).append("\t")
+                .append(record.alt).append("\t")
+                .append(".").append("\t")
+                .append(".").append("\t")
+                .append(".").append("\t")
+                .append("GT:GQ");
+
+        for (int n = 0; n < genotypes.length; ++n){
+            row.append("\t").append(genotypes[n] == null ? "./." : genotypes[n]);
+            genotypes[n] = null;
+        }
+
+        printWriter.println(row);
+    }
+
+    //sequence dictionary order when given, otherwise autosomes numerically, then X, Y, MT and remaining contigs by name
+    static class ContigComparator implements Comparator<String> {
+        private final HashMap<String, Integer> dictionaryIndexes = new HashMap<>();
+
+        ContigComparator(){
+        }
+
+        ContigComparator(List<String> contigOrder){
+            for (String contig : contigOrder){
+                if (!dictionaryIndexes.containsKey(contig)) dictionaryIndexes.put(contig, dictionaryIndexes.size());
+            }
+        }
+
+        @Override
+        public int compare(String contig1, String contig2){
+            Integer index1 = dictionaryIndexes.get(contig1), index2 = dictionaryIndexes.get(contig2);
+
+            //contigs missing from the dictionary follow those in it
+            if (index1 != null && index2 != null) return Integer.compare(index1, index2);
+            if (index1 != null) return -1;
+            if (index2 != null) return 1;
+
+            int compare = Integer.compare(getRank(contig1), getRank(contig2));
+            return compare == 0 ? contig1.compareTo(contig2) : compare;
+        }
+
+        private static int getRank(String contig){
+            String name = contig.startsWith("chr") ? contig.substring(3) : contig;
+
+            if (name.matches("[0-9]+")){
+                int number = Integer.parseInt(name);
+                if (number > 0 && number < 23) return number;
+            } else if (name.equals("X")){
+                return 23;
+            } else if (name.equals("Y")){
+                return 24;
+            } else if (name.equals("MT") || name.equals("M")){
+                return 25;
+            }
+
+            return 26;
+        }
+    }
+
+    private static class Record implements Comparable<Record> {
+        private static final ContigComparator contigComparator = new ContigComparator();
+
+        private final String contig, ref, alt, genotype;
+        private final int pos, sampleIndex;
+
+        private Record(String contig, int pos, String ref, String alt, int sampleIndex, String genotype){
+            this.contig = contig;
+            this.pos = pos;
+            this.ref = ref;
+            this.alt = alt;
+            this.sampleIndex = sampleIndex;
+            this.genotype = genotype;
+        }
+
+        private String toLine(){
+            return contig + "\t" + pos + "\t" + ref + "\t" + alt + "\t" + sampleIndex + "\t" + genotype;
+        }
+
+        //orders by variant only, genotypes for the same variant are merged
+        @Override
+        public int compareTo(Record other){
+            int compare = contigComparator.compare(contig, other.contig);
+            if (compare == 0) compare = Integer.compare(pos, other.pos);
+            if (compare == 0) compare = ref.compareTo(other.ref);
+            if (compare == 0) compare = alt.compareTo(other.alt);
+            return compare;
+        }
+    }
+
+    private static class Run implements Comparable<Run> {
+        private BufferedReader bufferedReader;
+        private Record head;
+
+        private Run(BufferedReader bufferedReader){
+            this.bufferedReader = bufferedReader;
+        }
+
+        private boolean advance() throws IOException {
+            String line = bufferedReader.readLine();
+
+            if (line == null){
+                head = null;
+            } else {
+                String[] fields = line.split("\t");
+                head = new Record(fields[0], Integer.parseInt(fields[1]), fields[2], fields[3], Integer.parseInt(fields[4]), fields[5]);
+            }
+
+            return head != null;
+        }
+
+        private void close() throws IOException {
+            bufferedReader.close();
+        }
+
+        @Override
+        public int compareTo(Run other){
+            return head.compareTo(other.head);
+        }
+    }
+
+}
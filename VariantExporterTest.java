@@ -0,0 +1,111 @@
+package nhs.genetics.cardiff;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for merging spilled genotype runs into worklist rows
+ *
+ * @author  agent
+ * @version 1.0
+ * @since   2026-10-19
+ */
+public class VariantExporterTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("export").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        org.neo4j.io.fs.FileUtils.deleteRecursively(directory);
+    }
+
+    @Test
+    public void mergesGenotypesOfTheSameVariant() throws Exception {
+        ArrayList<File> runs = new ArrayList<>();
+
+        runs.add(writeRun("1\t100\tA\tC\t0\t0/1:30", "2\t5\tG\tT\t0\t1/1:.", "X\t7\tC\tA\t0\t0/1:20"));
+        runs.add(writeRun("1\t100\tA\tC\t2\t1/1:40", "1\t100\tA\tG\t2\t0/1:10", "10\t1\tT\tC\t2\t0/1:50"));
+
+        assertEquals(Arrays.asList(
+                "1\t100\t.\tA\tC\t.\t.\t.\tGT:GQ\t0/1:30\t./.\t1/1:40",
+                "1\t100\t.\tA\tG\t.\t.\t.\tGT:GQ\t./.\t./.\t0/1:10",
+                "2\t5\t.\tG\tT\t.\t.\t.\tGT:GQ\t1/1:.\t./.\t./.",
+                "10\t1\t.\tT\tC\t.\t.\t.\tGT:GQ\t./.\t./.\t0/1:50",
+                "X\t7\t.\tC\tA\t.\t.\t.\tGT:GQ\t0/1:20\t./.\t./."
+        ), writeRows(runs, 3));
+    }
+
+    @Test
+    public void mergesMoreRunsThanTheFanInInPasses() throws Exception {
+        int samples = VariantExporter.maxMergeFanIn * 2 + 3;
+        ArrayList<File> runs = new ArrayList<>();
+
+        //every sample carries the shared variant and one of its own
+        for (int sampleIndex = 0; sampleIndex < samples; ++sampleIndex){
+            runs.add(writeRun("1\t10\tA\tT\t" + sampleIndex + "\t0/1:" + sampleIndex, "1\t" + (1000 - sampleIndex) + "\tC\tG\t" + sampleIndex + "\t1/1:99"));
+        }
+
+        runs = VariantExporter.mergeRuns(runs, directory);
+        assertTrue(runs.size() <= VariantExporter.maxMergeFanIn);
+        assertEquals(runs.size(), directory.listFiles().length);
+
+        ArrayList<String> rows = writeRows(runs, samples);
+        assertEquals(samples + 1, rows.size());
+
+        String[] shared = rows.get(0).split("\t");
+        assertEquals("10", shared[1]);
+        for (int sampleIndex = 0; sampleIndex < samples; ++sampleIndex){
+            assertEquals("0/1:" + sampleIndex, shared[9 + sampleIndex]);
+        }
+
+        //own variants sorted by position, highest sample first
+        String[] own = rows.get(1).split("\t");
+        assertEquals(Integer.toString(1000 - samples + 1), own[1]);
+        assertEquals("1/1:99", own[9 + samples - 1]);
+        assertEquals("./.", own[9]);
+    }
+
+    private File writeRun(String... lines) throws Exception {
+        File file = File.createTempFile("genotypes", ".tsv", directory);
+
+        try (PrintWriter printWriter = new PrintWriter(file)){
+            for (String line : lines){
+                printWriter.println(line);
+            }
+        }
+
+        return file;
+    }
+
+    private static ArrayList<String> writeRows(ArrayList<File> runs, int samples) throws Exception {
+        StringWriter stringWriter = new StringWriter();
+        ArrayList<String> rows = new ArrayList<>();
+
+        try (PrintWriter printWriter = new PrintWriter(stringWriter)){
+            assertEquals(VariantExporter.merge(runs, printWriter, new String[samples]), (long) stringWriter.toString().split("\n").length);
+        }
+
+        for (String line : stringWriter.toString().split("\n")){
+            rows.add(line);
+        }
+
+        return rows;
+    }
+
+}
@@ -0,0 +1,181 @@
+package nhs.genetics.cardiff;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFFileReader;
+import htsjdk.variant.vcf.VCFHeaderLineCount;
+import htsjdk.variant.vcf.VCFInfoHeaderLine;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * A class for reading annotations from a sorted, indexed resource VCF. Fields map Variant node properties to
+ * INFO keys (e.g. kGPhase3EURAf=EUR_AF), allele count ratios (e.g. exacAFRAf=AC_AFR/AN_AFR) or the ID column (dbSnpId=ID).
+ *
+ * @author  agent
+ * @version 1.0
+ * @since   2026-10-19
+ */
+public class VcfAnnotationSource implements AnnotationSource {
+
+    private static final int minimumAllelesForAFCalculation = 120;
+
+    private final String name;
+    private final VCFFileReader vcfFileReader;
+    private final LinkedHashMap<String, String> fields; //property to expression
+
+    private String currentContig;
+    private CloseableIterator<VariantContext> variantContextIterator;
+    private VariantContext nextVariantContext;
+    private LinkedList<Record> window = new LinkedList<>(); //records which may still match a later variant
+
+    public VcfAnnotationSource(String name, File vcfFile, LinkedHashMap<String, String> fields){
+        this.name = name;
+        this.vcfFileReader = new VCFFileReader(vcfFile, true);
+        this.fields = fields;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Set<String> getPropertyKeys() {
+        return fields.keySet();
+    }
+
+    @Override
+    public HashMap<String, Object> getAnnotations(String contig, int pos, String ref, String alt) {
+        HashMap<String, Object> properties = new HashMap<>();
+        String variantId = contig + ":" + pos + ref + ">" + alt;
+
+        //start reading a new contig
+        if (!contig.equals(currentContig)){
+            if (variantContextIterator != null) variantContextIterator.close();
+            window.clear();
+
+            currentContig = contig;
+            variantContextIterator = vcfFileReader.query(contig, 1, Integer.MAX_VALUE);
+            nextVariantContext = variantContextIterator.hasNext() ? variantContextIterator.next() : null;
+        }
+
+        //read records starting at or before the variant, skipping records with no alleles that can match
+        while (nextVariantContext != null && nextVariantContext.getStart() <= pos){
+            Record record = new Record(nextVariantContext);
+            if (record.lastPos > 0) window.add(record);
+            nextVariantContext = variantContextIterator.hasNext() ? variantContextIterator.next() : null;
+        }
+
+        //drop every record whose alleles all normalise before the variant, not only from the head
+        Iterator<Record> iterator = window.iterator();
+        while (iterator.hasNext()){
+            if (iterator.next().lastPos < pos) iterator.remove();
+        }
+
+        //match alleles after normalisation
+        for (Record record : window){
+            for (int n = 0; n < record.variantIds.length; ++n){
+                if (variantId.equals(record.variantIds[n])){
+
+                    for (Map.Entry<String, String> field : fields.entrySet()){
+                        Object value = getValue(record.variantContext, n, field.getValue());
+                        if (value != null) properties.put(field.getKey(), value);
+                    }
+
+                    return properties;
+                }
+            }
+        }
+
+        return properties;
+    }
+
+    //records held for matching
+    int getWindowSize(){
+        return window.size();
+    }
+
+    @Override
+    public void close() {
+        if (variantContextIterator != null) variantContextIterator.close();
+        vcfFileReader.close();
+    }
+
+    private Object getValue(VariantContext variantContext, int alleleIndex, String expression){
+
+        //id column
+        if (expression.equals("ID")){
+            return variantContext.hasID() ? variantContext.getID() : null;
+        }
+
+        //allele count ratio
+        if (expression.contains("/")){
+            String[] keys = expression.split("/");
+            Float alleleCount = getFloat(variantContext, alleleIndex, keys[0]);
+            Float alleleNumber = getFloat(variantContext, alleleIndex, keys[1]);
+
+            if (alleleCount != null && alleleNumber != null && alleleNumber > minimumAllelesForAFCalculation){
+                return alleleCount / alleleNumber;
+            }
+
+            return null;
+        }
+
+        return getFloat(variantContext, alleleIndex, expression);
+    }
+
+    //get per-allele or per-site INFO value, alleleIndex is the alternate allele
+    private Float getFloat(VariantContext variantContext, int alleleIndex, String key){
+        List<Object> values = variantContext.getAttributeAsList(key);
+        int alternateAlleles = variantContext.getAlternateAlleles().size();
+        VCFInfoHeaderLine infoHeaderLine = vcfFileReader.getFileHeader().getInfoHeaderLine(key);
+        int index = 0;
+
+        //Number=R lists REF first, Number=A starts at the first alternate
+        if (infoHeaderLine != null ? infoHeaderLine.getCountType() == VCFHeaderLineCount.R : values.size() == alternateAlleles + 1){
+            index = alleleIndex + 1;
+        } else if (infoHeaderLine != null ? infoHeaderLine.getCountType() == VCFHeaderLineCount.A : values.size() == alternateAlleles){
+            index = alleleIndex;
+        }
+
+        if (index >= values.size()){
+            return null;
+        }
+
+        Object value = values.get(index);
+
+        if (value == null || value.toString().equals(".")){
+            return null;
+        }
+
+        return Float.parseFloat(value.toString());
+    }
+
+    private static class Record {
+        private final VariantContext variantContext;
+        private final String[] variantIds; //minimal representation of each alternate allele
+        private int lastPos; //latest minimal position of any allele, zero when none can match
+
+        private Record(VariantContext variantContext){
+            this.variantContext = variantContext;
+            this.variantIds = new String[variantContext.getAlternateAlleles().size()];
+
+            for (int n = 0; n < variantIds.length; ++n){
+                Allele allele = variantContext.getAlternateAllele(n);
+
+                if (allele.isSymbolic() || allele.getBaseString().equals("*")){
+                    continue;
+                }
+
+                GenomeVariant genomeVariant = new GenomeVariant(variantContext.getContig(), variantContext.getStart(), variantContext.getReference().getBaseString(), allele.getBaseString());
+                genomeVariant.convertToMinimalRepresentation();
+                variantIds[n] = genomeVariant.toString();
+                lastPos = Math.max(lastPos, genomeVariant.getPos());
+            }
+        }
+    }
+
+}
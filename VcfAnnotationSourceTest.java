@@ -0,0 +1,110 @@
+package nhs.genetics.cardiff;
+
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.IndexFactory;
+import htsjdk.variant.vcf.VCFCodec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for reading annotations from a resource VCF
+ *
+ * @author  agent
+ * @version 1.0
+ * @since   2026-10-19
+ */
+public class VcfAnnotationSourceTest {
+
+    private File directory;
+    private VcfAnnotationSource vcfAnnotationSource;
+    private String longRef;
+
+    @Before
+    public void setUp() throws Exception {
+        StringBuilder stringBuilder = new StringBuilder("A");
+        directory = Files.createTempDirectory("annotation-source").toFile();
+        File vcfFile = new File(directory, "resource.vcf");
+
+        for (int n = 0; n < 300; ++n){
+            stringBuilder.append("CGT".charAt(n % 3));
+        }
+        longRef = stringBuilder.toString();
+
+        try (PrintWriter printWriter = new PrintWriter(vcfFile)){
+            printWriter.println("##fileformat=VCFv4.1");
+            printWriter.println("##INFO=<ID=AC,Number=A,Type=Integer,Description=\"Allele count\">");
+            printWriter.println("##INFO=<ID=AN,Number=1,Type=Integer,Description=\"Allele number\">");
+            printWriter.println("##INFO=<ID=AF,Number=A,Type=Float,Description=\"Allele frequency\">");
+            printWriter.println("##INFO=<ID=END,Number=1,Type=Integer,Description=\"End\">");
+            printWriter.println("##ALT=<ID=DEL,Description=\"Deletion\">");
+            printWriter.println("##contig=<ID=1,length=100000>");
+            printWriter.println("##contig=<ID=2,length=100000>");
+            printWriter.println("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO");
+            printWriter.println("1\t100\trs1\t" + longRef + "\tA\t.\tPASS\tAC=5;AN=1000;AF=0.005");
+            printWriter.println("1\t150\t.\tC\t<DEL>\t.\tPASS\tEND=50000;AC=1;AN=1000;AF=0.001");
+            printWriter.println("1\t200\trs2\tC\tT,G\t.\tPASS\tAC=10,300;AN=1000;AF=0.01,0.3");
+            printWriter.println("1\t250\trs3\tGA\tG\t.\tPASS\tAC=1;AN=100;AF=0.01");
+            printWriter.println("2\t10\trs4\tA\tT\t.\tPASS\tAC=2;AN=1000;AF=0.002");
+        }
+
+        Index index = IndexFactory.createLinearIndex(vcfFile, new VCFCodec());
+        index.writeBasedOnFeatureFile(vcfFile);
+
+        LinkedHashMap<String, String> fields = new LinkedHashMap<>();
+        fields.put("id", "ID");
+        fields.put("af", "AF");
+        fields.put("ratio", "AC/AN");
+
+        vcfAnnotationSource = new VcfAnnotationSource("resource", vcfFile, fields);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        vcfAnnotationSource.close();
+        org.neo4j.io.fs.FileUtils.deleteRecursively(directory);
+    }
+
+    @Test
+    public void matchesAllelesAndEvictsPassedRecords() throws Exception {
+        HashMap<String, Object> annotations = vcfAnnotationSource.getAnnotations("1", 100, longRef, "A");
+        assertEquals("rs1", annotations.get("id"));
+        assertEquals(0.005f, (Float) annotations.get("af"), 1e-6);
+
+        //second alternate allele, symbolic record is never held
+        annotations = vcfAnnotationSource.getAnnotations("1", 200, "C", "G");
+        assertEquals("rs2", annotations.get("id"));
+        assertEquals(0.3f, (Float) annotations.get("af"), 1e-6);
+        assertEquals(0.3f, (Float) annotations.get("ratio"), 1e-6);
+
+        //the long deletion at the head has been dropped
+        assertEquals(1, vcfAnnotationSource.getWindowSize());
+
+        //too few alleles for a ratio
+        annotations = vcfAnnotationSource.getAnnotations("1", 250, "GA", "G");
+        assertEquals("rs3", annotations.get("id"));
+        assertFalse(annotations.containsKey("ratio"));
+        assertEquals(1, vcfAnnotationSource.getWindowSize());
+
+        assertTrue(vcfAnnotationSource.getAnnotations("1", 260, "C", "T").isEmpty());
+        assertEquals(0, vcfAnnotationSource.getWindowSize());
+
+        assertEquals("rs4", vcfAnnotationSource.getAnnotations("2", 10, "A", "T").get("id"));
+    }
+
+    @Test
+    public void ignoresDifferentAllele() throws Exception {
+        assertTrue(vcfAnnotationSource.getAnnotations("1", 200, "C", "A").isEmpty());
+    }
+
+}
@@ -10,9 +10,9 @@ if [ "$#" -ne 1 ]; then
     echo "Usage <VCF>"
 fi
 
-#check index is present
-if [ ! -f "$1".idx ]; then
-	echo VCF not indexed
+#check index is present, CSI is not supported
+if [ ! -f "$1".idx ] && [ ! -f "$1".tbi ]; then
+	echo VCF not indexed, expected .idx or .tbi
 	exit
 fi
 
@@ -36,7 +36,7 @@ perl ~/ensembl-tools-release-82/scripts/variant_effect_predictor/variant_effect_
 -v \
 -i imported.sorted.vcf \
 --format vcf \
--o imported.sorted.vep.vcf \
+-o imported.vep.vcf \
 --vcf \
 --force_overwrite \
 --species homo_sapiens \
@@ -52,53 +52,36 @@ perl ~/ensembl-tools-release-82/scripts/variant_effect_predictor/variant_effect_
 -custom /data/db/human/phastCons/hg19.100way.phastCons.bw,phastCons,bigwig \
 --no_stats
 
-if [ -f imported.sorted.vep.vcf ]; then
+if [ -f imported.vep.vcf ]; then
 
 	echo annotations found
 
-	#add population frequencies and dbSNPId
-	~/jre1.8.0_77/bin/java -Xmx2g -jar /share/apps/GATK-distros/GATK_3.4-46/GenomeAnalysisTK.jar \
-	-R /data/db/human/gatk/2.8/b37/human_g1k_v37.fasta \
-	-T VariantAnnotator \
-	--dbsnp /data/db/human/gatk/2.8/b37/dbsnp_138.b37.vcf \
-	-V imported.sorted.vep.vcf \
-	-o imported.sorted.vep.af.vcf \
-	--resource:kGPhase3 /data/db/human/1kg/ALL.wgs.phase3_shapeit2_mvncall_integrated_v5b.20130502.sites.vcf \
-	--resource:exac /data/db/human/ExAC/ExAC.r0.3.sites.vep.vcf \
-	-E kGPhase3.EAS_AF \
-	-E kGPhase3.EUR_AF \
-	-E kGPhase3.AFR_AF \
-	-E kGPhase3.AMR_AF \
-	-E kGPhase3.SAS_AF \
-	-E exac.AC_AFR \
-	-E exac.AC_AMR \
-	-E exac.AC_EAS \
-	-E exac.AC_FIN \
-	-E exac.AC_NFE \
-	-E exac.AC_OTH \
-	-E exac.AC_SAS \
-	-E exac.AN_AFR \
-	-E exac.AN_AMR \
-	-E exac.AN_EAS \
-	-E exac.AN_FIN \
-	-E exac.AN_NFE \
-	-E exac.AN_OTH \
-	-E exac.AN_SAS \
-	-L imported.sorted.vep.vcf \
-	-ip 300 \
-	-dt NONE
+	#index annotated variants for import
+	java -jar /share/apps/picard-tools-distros/picard-tools-1.129/picard.jar SortVcf \
+	I=imported.vep.vcf \
+	O=imported.sorted.vep.vcf \
+	CREATE_INDEX=true \
+	SD=/data/db/human/gatk/2.8/b37/human_g1k_v37.dict
+
+	#population frequencies and dbSNPId are read from the resource VCFs during import, which must be indexed
+	printf "%s\t%s\t%s\n" \
+	dbsnp /data/db/human/gatk/2.8/b37/dbsnp_138.b37.vcf dbSnpId=ID \
+	kGPhase3 /data/db/human/1kg/ALL.wgs.phase3_shapeit2_mvncall_integrated_v5b.20130502.sites.vcf kGPhase3AFRAf=AFR_AF,kGPhase3AMRAf=AMR_AF,kGPhase3EASAf=EAS_AF,kGPhase3EURAf=EUR_AF,kGPhase3SASAf=SAS_AF \
+	exac /data/db/human/ExAC/ExAC.r0.3.sites.vep.vcf exacAFRAf=AC_AFR/AN_AFR,exacAMRAf=AC_AMR/AN_AMR,exacEASAf=AC_EAS/AN_EAS,exacNFEAf=AC_NFE/AN_NFE,exacSASAf=AC_SAS/AN_SAS,exacFINAf=AC_FIN/AN_FIN,exacOTHAf=AC_OTH/AN_OTH \
+	> annotation-sources.txt
 
 	#import annotations
 	~/jre1.8.0_77/bin/java -Xmx16g -jar /home/ml/import2neo4j/ImportToNeo4j.jar \
-	imported.sorted.vep.af.vcf \
+	imported.sorted.vep.vcf \
 	graph.db \
-	-a
+	-a \
+	-e annotation-sources.txt
 
 	#clean up
+	rm imported.vep.vcf
 	rm imported.sorted.vep.vcf
 	rm imported.sorted.vep.vcf.idx
-	rm imported.sorted.vep.af.vcf
-	rm imported.sorted.vep.af.vcf.idx
+	rm annotation-sources.txt
 
 else
 	echo annotations not found